@@ -0,0 +1,31 @@
+#!/usr/bin/env python
+"""
+  Checks the Message-ID hashes written by MessageIdCheck against msg_hash
+  in dedup.py, which has to find the same duplicates.
+
+  python check_msg_hash.py vectors.txt
+
+  Each line of vectors.txt: date, address (UTF-8), type and hash, tab separated.
+"""
+
+import os
+import sys
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..'))
+from dedup import Deduper
+
+if __name__ == "__main__":
+  if len(sys.argv) != 2:
+    print "%s <vectors>" % os.path.basename(sys.argv[0])
+    sys.exit(1)
+
+  count = 0
+  for line in open(sys.argv[1], 'rb'):
+    date, address, type, expected = line.rstrip('\n').split('\t')
+    actual = Deduper.msg_hash(int(date), int(type), address)
+    if actual != expected:
+      print "FAIL %s %r %s: %s != %s" % (date, address, type, expected, actual)
+      sys.exit(1)
+    count += 1
+
+  print "msg_hash identical: %d" % count
@@ -0,0 +1,160 @@
+package com.zegoggles.smssync;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Checks that {@link MessageIds} creates the same Message-IDs as the implementation it
+ * replaced (CursorToMessage.createMessageId), and strips the same characters as
+ * <code>replaceAll("\\p{Cntrl}", "")</code> (CursorToMessage.sanitize), then times both.
+ * Optionally writes test vectors for check_msg_hash.py, which compares them with
+ * msg_hash in dedup.py.
+ *
+ * Usage: MessageIdCheck [random inputs] [vectors file], see run.sh
+ */
+public class MessageIdCheck {
+    private static final String[] ADDRESSES = {
+        "", "5556", "+491701234567", "+1 (555) 123-4567", "unknown", "Müller", "東京", "😀",
+        "tab\tand\nnewline", "\u0000\u001f\u007f", "\ud800 lone high", "lone low \udc00", "\udc00\ud800",
+    };
+    private static final long[] DATES = {
+        0, 1, -1, 1300000000000L, -1300000000000L, Long.MAX_VALUE, Long.MIN_VALUE,
+    };
+    private static final int[] TYPES = { 0, 1, 2, 3, 5, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+    public static void main(String[] args) throws Exception {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        final Random random = new Random(1);
+
+        int checked = 0;
+        for (String address : ADDRESSES) {
+            for (long date : DATES) {
+                for (int type : TYPES) checkId(date, address, type);
+            }
+            checkStrip(address);
+            checked++;
+        }
+        for (int i = 0; i < n; i++) {
+            final long date = random.nextInt(3) == 0 ? random.nextLong() :
+                              1000000000000L + random.nextInt(Integer.MAX_VALUE) * 100L;
+            final int type = random.nextInt(3) == 0 ? random.nextInt() : random.nextInt(7);
+            checkId(date, random(random, random.nextInt(40), i % 2 == 0), type);
+            checkStrip(random(random, random.nextInt(40), true));
+        }
+        System.out.println("Message-IDs identical: " + (checked * DATES.length * TYPES.length + n) +
+                           ", stripped strings identical: " + (checked + n));
+
+        if (args.length > 1) writeVectors(args[1], random);
+        benchmark();
+    }
+
+    /** The Message-ID as CursorToMessage.createMessageId created it before MessageIds. */
+    static String legacyMessageId(Date sent, String address, int type) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
+        digest.update(address.getBytes("UTF-8"));
+        digest.update(Integer.toString(type).getBytes("UTF-8"));
+
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return String.format("<%s@sms-backup-plus.local>", sb.toString());
+    }
+
+    private static void checkId(long date, String address, int type) throws Exception {
+        final String expected = legacyMessageId(new Date(date), address, type);
+        final String actual = MessageIds.create(date, address, type);
+        if (!expected.equals(actual)) {
+            fail(date + " " + escape(address) + " " + type + ": " + expected + " != " + actual);
+        }
+    }
+
+    private static void checkStrip(String s) {
+        final String expected = s.replaceAll("\\p{Cntrl}", "");
+        final String actual = MessageIds.stripControlChars(s);
+        if (!expected.equals(actual)) fail(escape(s) + ": " + escape(expected) + " != " + escape(actual));
+    }
+
+    /** Realistic inputs, with valid UTF-16 and without tabs or newlines. */
+    private static void writeVectors(String file, Random random) throws Exception {
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (int i = 0; i < 2000; i++) {
+                final long date = 1300000000000L + random.nextInt(1 << 30);
+                final int type = random.nextInt(7);
+                final String address;
+                switch (i % 4) {
+                    case 0:  address = "Müller " + i; break;
+                    case 1:  address = "東京 😀 " + i; break;
+                    default: address = "+" + (4900000000L + random.nextInt(100000000));
+                }
+                out.println(date + "\t" + address + "\t" + type + "\t" + MessageIds.hash(date, address, type));
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println("wrote vectors to " + file);
+    }
+
+    private static void benchmark() throws Exception {
+        final String[] addresses = { "+491701234567", "5556", "+1 (555) 123-4567", "unknown" };
+        final String[] strings = { "+491701234567", "John Doe", "Jane\u0007 Doe\n" };
+        final int n = 1000000;
+
+        // the first rounds warm up the JIT
+        for (int round = 0; round < 3; round++) {
+            int sum = 0;
+            final long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) sum += legacyMessageId(new Date(1300000000000L + i), addresses[i & 3], i & 3).length();
+            final long t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) sum += MessageIds.create(1300000000000L + i, addresses[i & 3], i & 3).length();
+            final long t2 = System.nanoTime();
+            for (int i = 0; i < n; i++) sum += strings[i % 3].replaceAll("\\p{Cntrl}", "").length();
+            final long t3 = System.nanoTime();
+            for (int i = 0; i < n; i++) sum += MessageIds.stripControlChars(strings[i % 3]).length();
+            final long t4 = System.nanoTime();
+
+            if (round == 2) {
+                System.out.println(String.format("Message-ID: legacy %dns, MessageIds %dns; " +
+                                                 "sanitize: replaceAll %dns, stripControlChars %dns (%d)",
+                                   (t1 - t0) / n, (t2 - t1) / n, (t3 - t2) / n, (t4 - t3) / n, sum));
+            }
+        }
+    }
+
+    /** Random ASCII, with wide characters, surrogate pairs and lone surrogates mixed in */
+    private static String random(Random random, int length, boolean wide) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            final int kind = random.nextInt(10);
+            if (!wide || kind < 6) {
+                sb.append((char) (random.nextBoolean() ? '0' + random.nextInt(10) : random.nextInt(128)));
+            } else if (kind < 8) {
+                sb.append((char) (0x80 + random.nextInt(0x800)));
+            } else if (kind < 9) {
+                sb.append(Character.toChars(0x10000 + random.nextInt(0x10000)));
+            } else {
+                sb.append((char) (0xd800 + random.nextInt(0x800)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        final StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c < 0x20 || c > 0x7e) sb.append(String.format("\\u%04x", (int) c)); else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAIL " + message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,123 @@
+package com.zegoggles.smssync;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that {@link PendingWatermarks} moves the watermarks the way the backup relies on:
+ *
+ * <ul>
+ *   <li>synchronous appends, confirmed while the batch is being appended (no LITERAL+ or
+ *       LITERAL-, and large messages on LITERAL- servers)</li>
+ *   <li>pipelined appends, confirmed while later batches are sent or on flush</li>
+ *   <li>a failed append holds back its batch and all later ones</li>
+ *   <li>batches without messages to send (uploaded before, or no call log folder)</li>
+ * </ul>
+ *
+ * Usage: PendingWatermarksCheck, see run.sh
+ */
+public class PendingWatermarksCheck {
+    private static final Map<String, Long> watermarks = new HashMap<String, Long>();
+
+    public static void main(String[] args) {
+        synchronous();
+        pipelined();
+        failed();
+        empty();
+        System.out.println("watermarks moved as expected");
+    }
+
+    /** Like appendSynchronizing: every message is confirmed before appendMessages returns. */
+    private static void synchronous() {
+        final PendingWatermarks<String> pending = create();
+        for (int batch = 1; batch <= 3; batch++) {
+            final List<Message> messages = messages(2);
+            pending.add("SMS", batch * 100, messages);
+            for (Message message : messages) pending.onAppended(message);
+            expect("synchronous batch " + batch, "SMS", batch * 100);
+        }
+        expect("synchronous, nothing pending", pending.size(), 0);
+    }
+
+    private static void pipelined() {
+        final PendingWatermarks<String> pending = create();
+        final List<Message> first = messages(2), second = messages(2);
+        pending.add("SMS", 100, first);
+        pending.add("SMS", 200, second);
+        expect("pipelined, latest", pending.getLatest("SMS"), 200);
+        expect("pipelined, nothing confirmed", "SMS", 0);
+
+        pending.onAppended(first.get(0));
+        expect("pipelined, first batch half confirmed", "SMS", 0);
+        pending.onAppended(first.get(1));
+        expect("pipelined, first batch confirmed", "SMS", 100);
+        pending.onAppended(second.get(0));
+        pending.onAppended(second.get(1));
+        expect("pipelined, second batch confirmed", "SMS", 200);
+        expect("pipelined, latest once confirmed", pending.getLatest("SMS"), 200);
+    }
+
+    private static void failed() {
+        final PendingWatermarks<String> pending = create();
+        final List<Message> first = messages(2), second = messages(1);
+        pending.add("SMS", 100, first);
+        pending.add("SMS", 200, second);
+        pending.onAppended(first.get(1));  // first.get(0) got a NO
+        pending.onAppended(second.get(0));
+        expect("failed append", "SMS", 0);
+        expect("failed append, pending", pending.size(), 2);
+    }
+
+    private static void empty() {
+        final PendingWatermarks<String> pending = create();
+        pending.add("CALLLOG", 100, Collections.<Message>emptyList());
+        expect("empty batch", "CALLLOG", 100);
+
+        final List<Message> messages = messages(1);
+        pending.add("SMS", 100, messages);
+        pending.add("CALLLOG", 200, Collections.<Message>emptyList());
+        expect("empty batch behind a pending one", "CALLLOG", 100);
+        pending.onAppended(messages.get(0));
+        expect("empty batch behind a confirmed one", "CALLLOG", 200);
+        expect("batch before the empty one", "SMS", 100);
+    }
+
+    private static PendingWatermarks<String> create() {
+        watermarks.clear();
+        return new PendingWatermarks<String>(new PendingWatermarks.Watermarks<String>() {
+            public long get(String lane) {
+                final Long date = watermarks.get(lane);
+                return date != null ? date : 0;
+            }
+
+            public void set(String lane, long date) {
+                watermarks.put(lane, date);
+            }
+        });
+    }
+
+    private static List<Message> messages(int n) {
+        final List<Message> messages = new ArrayList<Message>(n);
+        for (int i = 0; i < n; i++) messages.add(new MimeMessage());
+        return messages;
+    }
+
+    private static void expect(String what, String lane, long date) {
+        final Long actual = watermarks.get(lane);
+        expect(what, actual != null ? actual : 0, date);
+    }
+
+    private static void expect(String what, long actual, long expected) {
+        if (actual != expected) {
+            System.out.println("FAIL " + what + ": " + actual + " != " + expected + " " + Arrays.asList(watermarks));
+            System.exit(1);
+        }
+    }
+}
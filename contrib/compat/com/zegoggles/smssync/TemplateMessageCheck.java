@@ -0,0 +1,281 @@
+package com.zegoggles.smssync;
+
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Checks that {@link TemplateMessage} writes exactly the bytes K9's MimeMessage with a
+ * TextBody writes for the same message, and times both.
+ *
+ * <ul>
+ *   <li>bodies with trailing whitespace and CRs, '=', lines around and past 76 chars,
+ *       non-ASCII, control characters and no body at all, then random ones built from
+ *       the same characters</li>
+ *   <li>header values which need encoding (non-ASCII, control characters)</li>
+ *   <li>the same changes to both messages once built (headers set, added and removed, a
+ *       new body), which make TemplateMessage drop its bytes</li>
+ *   <li>{@link TemplateMessage.DateFormatter} against SimpleDateFormat in every time
+ *       zone, around each of its offset changes (DST) between 1970 and 2038</li>
+ * </ul>
+ *
+ * Usage: TemplateMessageCheck [random messages], see run.sh
+ */
+public class TemplateMessageCheck {
+    private static final String DATE_PATTERN = "EEE, dd MMM yyyy HH:mm:ss Z";
+    private static final String POOL = "abcdefgh XYZ 0189 .,;:!?=\t\r\nüß€\u0001\u007f😀";
+
+    private static final TemplateMessage.DateFormatter DATE_FORMATTER = new TemplateMessage.DateFormatter();
+    private static final TemplateMessage.Block VERSION = new TemplateMessage.Block("X-smssync-version", "1.5.0");
+
+    private static final String[] BODIES = {
+        "", "a", "=", "==\r\n=", "a=b", "=\n", "= ", "3=4 =",
+        "trailing space ", "trailing spaces   ", "trailing tab\t", "trailing cr\r", "trailing crlf\r\n",
+        "trailing lf\n", "\r", "\r\n", "\n", " ", "\t", " \r", "\t\r\n", "  \r\n  ",
+        "space before crlf \r\nnext", "tab before crlf\t\r\nnext", "space before lf \nnext",
+        "lone cr\rin the middle", "cr cr\r\r\n", "space cr space \r \r\n",
+        "Grüße", "€ 5", "😀", "café \r\n", "\u0001\u007f\u0000",
+        null,
+    };
+
+    private static final String[] VALUES = {
+        "plain", "", " ", "Grüße", "tab\there", "a=?b?=c", "line\r\nbreak",
+        "control\u0001", "😀 smile", repeat('x', 100), repeat('ü', 60),
+    };
+
+    public static void main(String[] args) throws Exception {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        checkDates();
+
+        final List<String> bodies = new ArrayList<String>(Arrays.asList(BODIES));
+        for (int length = 70; length <= 80; length++) {
+            bodies.add(repeat('x', length));
+            bodies.add(repeat('x', length - 1) + "=");
+            bodies.add(repeat('x', length - 2) + "=x");
+            bodies.add(repeat('x', length - 1) + " ");
+            bodies.add(repeat('x', length - 1) + "ü");
+            bodies.add(repeat('x', length) + "\r\n" + repeat('y', length));
+            bodies.add(repeat('x', length - 1) + " \r\nnext");
+        }
+        bodies.add(repeat('x', 500));
+        bodies.add(repeat('=', 100));
+        bodies.add(repeat('ü', 100));
+        bodies.add(repeat('€', 100));
+
+        int i = 0;
+        for (String body : bodies) {
+            for (String value : VALUES) check(i++, value, body, new Date(1300000000000L + i * 86400000L));
+        }
+        System.out.println("edge cases identical: " + i);
+
+        final Random random = new Random(42);
+        long oldNanos = 0, newNanos = 0;
+        for (int k = 0; k < n; k++) {
+            final String subject = random(random, random.nextInt(30));
+            final String body = random.nextInt(10) == 0 ? null : random(random, random.nextInt(400));
+            final Date date = new Date(random.nextLong() % 2000000000000L);
+            final long[] nanos = check(i++, subject, body, date);
+            if (k >= n / 2) {
+                oldNanos += nanos[0];
+                newNanos += nanos[1];
+            }
+        }
+        System.out.println("random messages identical: " + n);
+
+        final int timed = n - n / 2;
+        if (timed > 0) {
+            System.out.println(String.format("per message (build and write twice): MimeMessage %dns, TemplateMessage %dns",
+                               oldNanos / timed, newNanos / timed));
+        }
+    }
+
+    /** @return the nanoseconds spent on the old and the new message */
+    private static long[] check(int i, String value, String body, Date date) throws Exception {
+        final Address from = new Address("u" + i + "@unknown.email", i % 2 == 0 ? value : null);
+        final Address to = new Address("me@gmail.com");
+        final boolean callLog = i % 3 == 0;  // call log messages get the body headers later
+        final String backupTime = new Date(1300000000000L).toGMTString();
+
+        final long start = System.nanoTime();
+        final MimeMessage old = new MimeMessage();
+        old.setSubject(value);
+        if (!callLog) old.setBody(new TextBody(body));
+        old.setFrom(from);
+        old.setRecipient(Message.RecipientType.TO, to);
+        if (callLog) old.setBody(new TextBody(body));
+        old.setSentDate(date);
+        old.setInternalDate(date);
+        old.setHeader("Message-ID", "<" + i + "@sms-backup-plus.local>");
+        old.setHeader("X-smssync-address", value);
+        old.setHeader("X-smssync-backup-time", backupTime);
+        old.setHeader("X-smssync-version", "1.5.0");
+        final byte[] expected = write(old);
+        write(old);
+
+        final long middle = System.nanoTime();
+        final TemplateMessage msg = new TemplateMessage();
+        msg.add("Subject", value);
+        if (!callLog) msg.add(TemplateMessage.TEXT_PLAIN);
+        msg.add("From", from.toEncodedString());
+        msg.add("To", to.toEncodedString());
+        if (callLog) msg.add(TemplateMessage.TEXT_PLAIN);
+        msg.addDate(date, DATE_FORMATTER.format(date));
+        msg.setInternalDate(date);
+        msg.add("Message-ID", "<" + i + "@sms-backup-plus.local>");
+        msg.add("X-smssync-address", value);
+        msg.add("X-smssync-backup-time", backupTime);
+        msg.add(VERSION);
+        msg.setText(body);
+        final byte[] actual = write(msg);
+        write(msg);
+        final long end = System.nanoTime();
+
+        if (!Arrays.equals(expected, actual)) {
+            fail("message " + i + " differs, subject " + escape(value) + ", body " + escape(body) + ":\n" +
+                 new String(expected, "US-ASCII") + "\n----\n" + new String(actual, "US-ASCII"));
+        }
+        if (msg.getSize() != actual.length) fail("message " + i + ": wrong size");
+        if (!old.getMessageId().equals(msg.getMessageId()) ||
+            !Arrays.equals(old.getHeader("X-smssync-address"), msg.getHeader("X-smssync-address")) ||
+            !Arrays.equals(old.getHeader("X-missing"), msg.getHeader("X-missing")) ||
+            !old.getSentDate().equals(msg.getSentDate())) {
+            fail("message " + i + ": headers differ");
+        }
+        if (i % 5 == 0) checkChanged(i, old, msg, value, body);
+        return new long[] { middle - start, end - middle };
+    }
+
+    private static void checkChanged(int i, MimeMessage old, TemplateMessage msg, String value, String body)
+            throws Exception {
+        for (MimeMessage m : new MimeMessage[] { old, msg }) {
+            m.setHeader("Message-ID", "<changed" + i + "@sms-backup-plus.local>");
+            m.addHeader("X-smssync-address", "+49" + i);
+            m.removeHeader("X-smssync-backup-time");
+            if (i % 2 == 0) m.setBody(new TextBody(body != null ? body + " edited" : "new"));
+            if (i % 3 == 0) m.setEncoding("8bit");
+        }
+        old.addHeader("X-added", value);
+        msg.add("X-added", value);
+
+        final byte[] expected = write(old), actual = write(msg);
+        if (!Arrays.equals(expected, actual)) {
+            fail("changed message " + i + " differs:\n" +
+                 new String(expected, "US-ASCII") + "\n----\n" + new String(actual, "US-ASCII"));
+        }
+        // MimeMessage caches the Message-ID it returned before
+        if (!msg.getMessageId().equals("<changed" + i + "@sms-backup-plus.local>") ||
+            !Arrays.equals(old.getHeader("X-smssync-address"), msg.getHeader("X-smssync-address")) ||
+            !Arrays.equals(old.getHeader("X-smssync-backup-time"), msg.getHeader("X-smssync-backup-time")) ||
+            !old.getHeaderNames().equals(msg.getHeaderNames())) {
+            fail("changed message " + i + ": headers differ");
+        }
+    }
+
+    /** Formats dates around every offset change of every zone, in order and out of order. */
+    private static void checkDates() {
+        final TimeZone defaultZone = TimeZone.getDefault();
+        final Random random = new Random(7);
+        int zones = 0, transitions = 0, dates = 0;
+        try {
+            for (String id : TimeZone.getAvailableIDs()) {
+                final TimeZone zone = TimeZone.getTimeZone(id);
+                TimeZone.setDefault(zone);
+                final SimpleDateFormat expected = new SimpleDateFormat(DATE_PATTERN, Locale.US);
+                final TemplateMessage.DateFormatter formatter = new TemplateMessage.DateFormatter();
+                zones++;
+
+                final long step = 6 * 3600 * 1000L;
+                for (long t = 0; t < 2145916800000L; t += step) {
+                    if (zone.getOffset(t) == zone.getOffset(t + step)) continue;
+
+                    // narrow it down to the millisecond
+                    long lo = t, hi = t + step;
+                    while (hi - lo > 1) {
+                        final long mid = (lo + hi) / 2;
+                        if (zone.getOffset(mid) == zone.getOffset(lo)) lo = mid; else hi = mid;
+                    }
+                    transitions++;
+                    for (long d = hi - 3 * 3600 * 1000L; d <= hi + 3 * 3600 * 1000L; d += 15 * 60 * 1000L) {
+                        dates += checkDate(id, expected, formatter, d);
+                    }
+                    for (long d = hi - 2000; d <= hi + 2000; d += 500) {
+                        dates += checkDate(id, expected, formatter, d);
+                    }
+                    // jumping back and forth across the change and the day
+                    for (int k = 0; k < 20; k++) {
+                        dates += checkDate(id, expected, formatter, hi + (random.nextInt(4) - 2) * 86400000L +
+                                                                  random.nextInt(7200000) - 3600000);
+                    }
+                }
+                for (int k = 0; k < 200; k++) {
+                    dates += checkDate(id, expected, formatter, random.nextLong() % 4000000000000L);
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+        System.out.println("dates identical: " + dates + " in " + zones + " zones, around " +
+                           transitions + " offset changes");
+    }
+
+    private static int checkDate(String zone, SimpleDateFormat expected, TemplateMessage.DateFormatter formatter,
+                                 long time) {
+        final Date date = new Date(time);
+        final String e = expected.format(date), a = formatter.format(date);
+        if (!e.equals(a)) fail(zone + " " + time + ": " + e + " != " + a);
+        return 1;
+    }
+
+    private static byte[] write(MimeMessage message) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    /** Random text from {@link #POOL}, without broken surrogate pairs. */
+    private static String random(Random random, int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            final int at = random.nextInt(POOL.length());
+            final char c = POOL.charAt(at);
+            if (Character.isHighSurrogate(c)) {
+                sb.append(c).append(POOL.charAt(at + 1));
+            } else if (!Character.isLowSurrogate(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String repeat(char c, int n) {
+        final char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static String escape(String s) {
+        if (s == null) return "null";
+        final StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c < 0x20 || c > 0x7e) sb.append(String.format("\\u%04x", (int) c)); else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAIL " + message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,33 @@
+#!/bin/sh
+# Checks that the message serialization and the Message-IDs of the backup are exactly
+# the ones of the code they replaced, and times both. Also checks how watermarks move
+# with pipelined and synchronous appends. Needs a JDK, and commons-logging
+# on top of lib/ (Android has it built in, the desktop JVM doesn't). The Message-IDs
+# are also checked against dedup.py if Python 2 is around.
+#
+#   COMMONS_LOGGING=/path/to/commons-logging.jar contrib/compat/run.sh [random inputs]
+set -e
+cd "$(dirname "$0")/../.."
+
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+cp=$(ls lib/*.jar | tr '\n' ':')$COMMONS_LOGGING
+
+javac -nowarn -encoding UTF-8 -d "$out" -cp "$cp" \
+    src/com/zegoggles/smssync/TemplateMessage.java \
+    src/com/zegoggles/smssync/MessageIds.java \
+    src/com/zegoggles/smssync/PendingWatermarks.java \
+    contrib/compat/com/zegoggles/smssync/TemplateMessageCheck.java \
+    contrib/compat/com/zegoggles/smssync/MessageIdCheck.java \
+    contrib/compat/com/zegoggles/smssync/PendingWatermarksCheck.java
+
+java -cp "$out:$cp" com.zegoggles.smssync.PendingWatermarksCheck
+
+java -cp "$out:$cp" com.zegoggles.smssync.TemplateMessageCheck "$@"
+java -cp "$out:$cp" com.zegoggles.smssync.MessageIdCheck ${1:-300000} "$out/vectors.txt"
+
+if command -v python2 >/dev/null; then
+    python2 contrib/compat/check_msg_hash.py "$out/vectors.txt"
+else
+    echo "python2 not found, skipped the dedup.py check"
+fi
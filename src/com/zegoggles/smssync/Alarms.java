@@ -20,6 +20,7 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.util.Log;
 
 import static com.zegoggles.smssync.App.*;
@@ -32,14 +33,78 @@ public class Alarms {
     static final int REGULAR  = 2;
     static final int UNKNOWN  = 3;
 
-    static long scheduleIncomingSync(Context ctx) {
-        return scheduleSync(ctx, PrefStore.getIncomingTimeoutSecs(ctx), INCOMING, false);
+    /** A burst is synced at the latest this many incoming timeouts after its first change */
+    static final int MAX_BURST_TIMEOUTS = 4;
+
+    /** Gives the previous run time to finish before its continuation starts */
+    static final int CONTINUATION_DELAY_SECS = 5;
+
+    /** The changes which led to an incoming sync */
+    static class Burst {
+        final int changes;
+        final long start;
+
+        Burst(int changes, long start) {
+            this.changes = changes;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Coalesces bursts of changes (e.g. a busy group chat) into one run. The first change
+     * schedules a sync after the incoming timeout, like a single change always did, each
+     * further one doubles the delay, but the sync never happens later than
+     * {@link #MAX_BURST_TIMEOUTS} incoming timeouts after the first change.
+     */
+    static synchronized long scheduleIncomingSync(Context ctx) {
+        final int timeout = PrefStore.getIncomingTimeoutSecs(ctx);
+        if (timeout <= 0) return scheduleSync(ctx, timeout, INCOMING, false);  // never
+
+        final long maxLatency = (long) timeout * MAX_BURST_TIMEOUTS;
+        final SharedPreferences prefs = PrefStore.getPrefs(ctx);
+        final long now = System.currentTimeMillis();
+
+        long start = prefs.getLong(PrefStore.PREF_INCOMING_BURST_START, 0);
+        int changes = prefs.getInt(PrefStore.PREF_INCOMING_BURST_CHANGES, 0);
+        // a burst older than its maximum latency is stale (its sync never ran), start a new one
+        if (start <= 0 || start > now || now - start > maxLatency * 1000L) {
+            start = now;
+            changes = 0;
+        }
+        changes++;
+        prefs.edit()
+             .putLong(PrefStore.PREF_INCOMING_BURST_START, start)
+             .putInt(PrefStore.PREF_INCOMING_BURST_CHANGES, changes)
+             .commit();
+
+        final long delay = (long) timeout << Math.min(changes - 1, 16);
+        final long deadline = (start - now) / 1000 + maxLatency;
+        return scheduleSync(ctx, (int) Math.max(Math.min(delay, deadline), 1), INCOMING, false);
+    }
+
+    /** @return the burst which triggered the current sync (if any) and starts a new one */
+    static synchronized Burst takeIncomingBurst(Context ctx) {
+        final SharedPreferences prefs = PrefStore.getPrefs(ctx);
+        final Burst burst = new Burst(prefs.getInt(PrefStore.PREF_INCOMING_BURST_CHANGES, 0),
+                                      prefs.getLong(PrefStore.PREF_INCOMING_BURST_START, 0));
+        if (burst.changes > 0) {
+            prefs.edit()
+                 .remove(PrefStore.PREF_INCOMING_BURST_START)
+                 .remove(PrefStore.PREF_INCOMING_BURST_CHANGES)
+                 .commit();
+        }
+        return burst;
     }
 
     static long scheduleRegularSync(Context ctx) {
         return scheduleSync(ctx, PrefStore.getRegularTimeoutSecs(ctx), REGULAR, false);
     }
 
+    /** Continues a backup which stopped because its run exceeded its budget */
+    static long scheduleContinuation(Context ctx) {
+        return scheduleSync(ctx, CONTINUATION_DELAY_SECS, REGULAR, true);
+    }
+
     static long scheduleImmediateSync(Context ctx) {
         return scheduleSync(ctx, -1, BROADCAST_INTENT, true);
     }
@@ -70,6 +135,7 @@ public class Alarms {
         Intent intent = (new Intent(ctx, SmsBackupService.class))
               .putExtra(Consts.KEY_NUM_RETRIES, Consts.NUM_AUTO_RETRIES)
               .putExtra(Consts.SOURCE, source);
-        return PendingIntent.getService(ctx, 0, intent, 0);
+        // all sources share one alarm, its intent has to carry the latest source
+        return PendingIntent.getService(ctx, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 }
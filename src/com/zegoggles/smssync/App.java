@@ -35,6 +35,8 @@ public class App extends Application {
     private static CalendarAccessor sCalendarAccessor = null;
 
     public static final String LOG = "sms_backup_plus.log";
+    /** Trace file of the last run of a kind (backup, restore) */
+    public static final String TRACE = "sms_backup_plus_%s_trace.json";
 
     @Override
     public void onCreate() {
@@ -43,6 +45,7 @@ public class App extends Application {
       K9.app = this;
       K9.DEBUG = DEBUG;
       K9.DEBUG_PROTOCOL_IMAP = DEBUG;
+      ChangeObserver.register(this);
     }
 
     public static ContactAccessor contactAccessor() {
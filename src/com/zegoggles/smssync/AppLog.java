@@ -3,6 +3,7 @@ package com.zegoggles.smssync;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Environment;
 import android.text.format.DateFormat;
 import android.util.Log;
@@ -10,25 +11,29 @@ import android.view.View;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.LineNumberReader;
-import java.io.PrintWriter;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 
+/**
+ * The sync log. Appending only queues the line, {@link AsyncWriter} formats and writes
+ * queued lines in batches on a background thread, so logging never blocks a backup on
+ * (slow, external) storage. The log is a {@link CircularLogFile}, it never needs rotating.
+ */
 public class AppLog {
-    // keep max 32k worth of logs
-    static final int MAX_SIZE = 32 * 1024;
     static final int ID = 1;
 
-    private PrintWriter writer;
-    private String dateFormat;
+    private final File file;
+    private String dateFormat = "MM-dd kk:mm";
 
     public AppLog(String name, char[] format) {
         for (char c : format) {
@@ -42,82 +47,32 @@ public class AppLog {
             }
         }
 
-        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            final File logFile = getFile(name);
-            if (logFile.isFile() && logFile.exists()) rotate(logFile);
-
-            try {
-                writer = new PrintWriter(new FileWriter(logFile, true));
-            } catch (IOException e) {
-                Log.w(TAG, "error opening app log", e);
-            }
-        }
+        file = getFile(name);
     }
 
     public void append(String s) {
-        if (writer != null) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(format(new Date()))
-              .append(" ").append(s);
-            writer.println(sb);
-            if (LOCAL_LOGV) Log.v(TAG, "[AppLog]: " + sb);
-        }
+        if (LOCAL_LOGV) Log.v(TAG, "[AppLog]: " + s);
+        AsyncWriter.offer(new Record(file, dateFormat, System.currentTimeMillis(), s));
     }
 
+    /**
+     * Writes out queued lines before returning: they usually describe how a run ended,
+     * and the process may be gone before the writer thread wakes up again.
+     */
     public void close() {
         if (LOCAL_LOGV) Log.v(TAG, "AppLog#close()");
-        if (writer != null) writer.close();
+        AsyncWriter.flush();
     }
 
     public CharSequence format(Date d) {
         return DateFormat.format(dateFormat, d);
     }
 
-    private void rotate(final File logFile) {
-        if (logFile.length() > MAX_SIZE) {
-            if (LOCAL_LOGV) Log.v(TAG, "rotating logfile " + logFile);
-            new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        LineNumberReader r = new LineNumberReader(new FileReader(logFile));
-
-                        while (r.readLine() != null) ;
-                        r.close();
-
-                        int keep = Math.round(r.getLineNumber() * 0.3f);
-                        if (keep > 0) {
-                            r = new LineNumberReader(new FileReader(logFile));
-
-                            while (r.readLine() != null && r.getLineNumber() < keep) ;
-
-                            File newFile = new File(logFile.getAbsolutePath() + ".new");
-                            PrintWriter pw = new PrintWriter(new FileWriter(newFile));
-                            String line;
-                            while ((line = r.readLine()) != null) pw.println(line);
-
-                            pw.close();
-                            r.close();
-
-                            if (newFile.renameTo(logFile) && LOCAL_LOGV) {
-                                Log.v(TAG, "rotated file, new size = " + logFile.length());
-                            }
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "error rotating file " + logFile, e);
-                    }
-                }
-            }.start();
-        }
-    }
-
     public static Dialog displayAsDialog(String name, Context context) {
         final int PAD = 5;
         final TextView view = new TextView(context);
         view.setId(ID);
 
-        readLog(name, view);
-
         final ScrollView sView = new ScrollView(context) {
             {
                 addView(view);
@@ -125,12 +80,15 @@ public class AppLog {
             }
 
             @Override
-            protected void onLayout(boolean changed, int l, int t, int r, int b) {
-                super.onLayout(changed, l, t, r, b);
-                scrollTo(0, view.getHeight());
+            protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+                super.onScrollChanged(l, t, oldl, oldt);
+                // scrolled to the top, show older entries
+                if (t == 0 && view.getTag() instanceof Pager) ((Pager) view.getTag()).loadPrevious();
             }
         };
 
+        readLog(name, view);
+
         return new AlertDialog.Builder(context)
                 .setCustomTitle(null)
                 .setPositiveButton(android.R.string.ok, null)
@@ -142,35 +100,216 @@ public class AppLog {
         return readLog(getFile(name), view);
     }
 
+    /**
+     * Shows the newest page of the log in view (a TextView inside a ScrollView), older
+     * pages get added on demand. Pages are read in the background.
+     */
     public static boolean readLog(File f, View view) {
-        StringBuilder text = new StringBuilder();
-        if (f.exists() && view instanceof TextView) {
-            BufferedReader br = null;
-            try {
-                br = new BufferedReader(new FileReader(f));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    text.append(line);
-                    text.append('\n');
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "error reading", e);
-            } finally {
-                if (br != null) {
+        if (!(view instanceof TextView)) return false;
+
+        final Pager pager = new Pager(f, (TextView) view);
+        view.setTag(pager);
+        pager.loadPrevious();
+        return f.exists();
+    }
+
+    /** Loads pages of the log into a TextView, newest first. */
+    private static class Pager {
+        static final int PAGE_SIZE = 8 * 1024;
+
+        private final CircularLogFile file;
+        private final TextView view;
+        private CircularLogFile.Page page;
+        private boolean loading;
+
+        Pager(File file, TextView view) {
+            this.file = new CircularLogFile(file);
+            this.view = view;
+        }
+
+        void loadPrevious() {
+            if (loading || (page != null && !page.hasPrevious())) return;
+            loading = true;
+
+            final long end = page != null ? page.start : -1;
+            new AsyncTask<Void, Void, CircularLogFile.Page>() {
+                @Override
+                protected CircularLogFile.Page doInBackground(Void... params) {
                     try {
-                        br.close();
-                    } catch (IOException ignored) {
+                        return file.readPage(end, PAGE_SIZE);
+                    } catch (IOException e) {
+                        Log.e(TAG, "error reading", e);
+                        return null;
                     }
                 }
-            }
+
+                @Override
+                protected void onPostExecute(CircularLogFile.Page result) {
+                    loading = false;
+                    // the dialog got reused for a new read in the meantime
+                    if (view.getTag() != Pager.this) return;
+
+                    final boolean first = page == null;
+                    page = result != null ? result : new CircularLogFile.Page("", 0);
+                    if (first) {
+                        show(page.text.length() > 0 ? page.text :
+                             view.getContext().getString(R.string.app_log_empty), View.FOCUS_DOWN);
+                    } else if (page.text.length() > 0) {
+                        show(page.text + view.getText(), 0);
+                    }
+                }
+            }.execute();
         }
-        ((TextView) view).setText(text.length() > 0 ? text :
-                view.getContext().getString(R.string.app_log_empty));
 
-        return text.length() > 0;
+        /** Sets the text and keeps the entries which were shown in place. */
+        private void show(final CharSequence text, final int direction) {
+            final int oldHeight = view.getHeight();
+            view.setText(text);
+            if (!(view.getParent() instanceof ScrollView)) return;
+
+            final ScrollView scrollView = (ScrollView) view.getParent();
+            scrollView.post(new Runnable() {
+                public void run() {
+                    if (direction == View.FOCUS_DOWN) {
+                        scrollView.fullScroll(View.FOCUS_DOWN);
+                    } else {
+                        scrollView.scrollTo(0, view.getHeight() - oldHeight);
+                    }
+                    // nothing to scroll yet, so scrolling to the top can't ask for more
+                    if (view.getHeight() <= scrollView.getHeight()) loadPrevious();
+                }
+            });
+        }
     }
 
     static File getFile(String name) {
         return new File(Environment.getExternalStorageDirectory(), name);
     }
+
+    private static class Record {
+        final File file;
+        final String dateFormat, message;
+        final long time;
+
+        Record(File file, String dateFormat, long time, String message) {
+            this.file = file;
+            this.dateFormat = dateFormat;
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring of records. Producers claim a slot with
+     * a CAS on the tail and never wait: when the ring is full the record is dropped and
+     * counted. A daemon thread drains the ring every {@link #FLUSH_INTERVAL} ms (or when it
+     * fills up) and writes the records of a batch with one write per file, {@link #flush}
+     * drains it on the calling thread. Draining is serialized, there is one consumer at a time.
+     */
+    static class AsyncWriter {
+        static final int CAPACITY = 256;
+        static final long FLUSH_INTERVAL = 1000;
+
+        private static final AtomicReferenceArray<Record> RING = new AtomicReferenceArray<Record>(CAPACITY);
+        private static final AtomicLong TAIL = new AtomicLong();
+        private static final AtomicInteger DROPPED = new AtomicInteger();
+        /** next slot to read, only written while draining */
+        private static volatile long sHead;
+        private static Thread sThread;
+        private static final Object DRAIN_LOCK = new Object();
+
+        // the date format only has minute resolution, format each minute once
+        private static long sMinute = -1;
+        private static String sMinuteFormat, sFormattedMinute;
+
+        static void offer(Record record) {
+            long tail;
+            do {
+                tail = TAIL.get();
+                if (tail - sHead >= CAPACITY) {
+                    DROPPED.incrementAndGet();
+                    return;
+                }
+            } while (!TAIL.compareAndSet(tail, tail + 1));
+            RING.set((int) (tail % CAPACITY), record);
+
+            final Thread thread = getThread();
+            if (tail - sHead >= CAPACITY / 2) LockSupport.unpark(thread);
+        }
+
+        /** Writes out all records offered so far. */
+        static void flush() {
+            drain();
+        }
+
+        private static synchronized Thread getThread() {
+            if (sThread == null) {
+                sThread = new Thread("AppLog") {
+                    @Override public void run() {
+                        for (;;) {
+                            LockSupport.parkNanos(FLUSH_INTERVAL * 1000000);
+                            drain();
+                        }
+                    }
+                };
+                sThread.setDaemon(true);
+                sThread.setPriority(Thread.MIN_PRIORITY);
+                sThread.start();
+            }
+            return sThread;
+        }
+
+        private static void drain() {
+            synchronized (DRAIN_LOCK) {
+                drainLocked();
+            }
+        }
+
+        private static void drainLocked() {
+            final Map<File, StringBuilder> batch = new LinkedHashMap<File, StringBuilder>();
+            long head = sHead;
+            while (head < TAIL.get()) {
+                final int slot = (int) (head % CAPACITY);
+                final Record record = RING.get(slot);
+                if (record == null) break; // claimed but not yet stored, next time
+                RING.set(slot, null);
+                sHead = ++head;
+
+                StringBuilder lines = batch.get(record.file);
+                if (lines == null) {
+                    lines = new StringBuilder();
+                    batch.put(record.file, lines);
+                }
+                lines.append(formatMinute(record.dateFormat, record.time))
+                     .append(' ').append(record.message).append('\n');
+            }
+
+            if (batch.isEmpty() ||
+                !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) return;
+
+            // the count is only reset once it is written, with the first file's lines
+            int dropped = DROPPED.getAndSet(0);
+            if (dropped > 0) batch.values().iterator().next().append(dropped).append(" log records dropped\n");
+
+            for (Map.Entry<File, StringBuilder> e : batch.entrySet()) {
+                try {
+                    new CircularLogFile(e.getKey()).append(e.getValue().toString().getBytes("UTF-8"));
+                } catch (IOException ex) {
+                    Log.w(TAG, "error writing app log", ex);
+                    if (dropped > 0) DROPPED.addAndGet(dropped);
+                }
+                dropped = 0;
+            }
+        }
+
+        private static String formatMinute(String format, long time) {
+            final long minute = time / 60000;
+            if (minute != sMinute || !format.equals(sMinuteFormat)) {
+                sFormattedMinute = DateFormat.format(format, new Date(time)).toString();
+                sMinute = minute;
+                sMinuteFormat = format;
+            }
+            return sFormattedMinute;
+        }
+    }
 }
@@ -26,10 +26,18 @@ import android.util.Log;
 import java.util.Collections;
 import java.util.Date;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Comparator;
 import java.util.Arrays;
+import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.store.ImapStore;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
 import java.io.IOException;
 
@@ -39,6 +47,8 @@ import static com.zegoggles.smssync.CursorToMessage.DataType;
 
 public class BackupImapStore extends ImapStore {
     private Context context;
+    private final Set<BackupFolder> openFolders = Collections.synchronizedSet(new HashSet<BackupFolder>());
+    private volatile ImapMetrics metrics;
 
     static {
       // increase read timeout a bit
@@ -50,10 +60,58 @@ public class BackupImapStore extends ImapStore {
             @Override public String getStoreUri() {
               return PrefStore.getStoreUri(context);
             }
+
+            // K9 negotiates COMPRESS=DEFLATE and wraps the socket streams if the server
+            // supports it, for all network types unless told otherwise
+            @Override public boolean useCompression(int networkType) {
+              return PrefStore.isImapCompressionEnabled(context);
+            }
         });
         this.context = context;
     }
 
+    /**
+     * Closes the sockets of all open folders, so that a transfer in progress (e.g. a
+     * large MMS) fails right away instead of running to completion or into the read
+     * timeout. Can be called from any thread, the store must not be used afterwards.
+     */
+    public void abort() {
+        if (!ImapInternals.isAvailable()) return;
+
+        synchronized (openFolders) {
+            for (BackupFolder folder : openFolders) {
+                final Object connection = ImapInternals.getConnection(folder);
+                if (connection != null) ImapInternals.closeSocket(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes the sockets of all open folders and of the connections in the pool, which
+     * is emptied. Can be called from any thread, the store must not be used afterwards.
+     */
+    public void closeConnections() {
+        if (!ImapInternals.isAvailable()) return;
+
+        abort();
+        ImapInternals.closePooledConnections(this);
+    }
+
+    /** Sets the metrics of the current run, null to stop collecting them. */
+    void setMetrics(ImapMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    ImapMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void attachMetrics(Object connection) {
+        if (metrics != null && connection != null && ImapInternals.isAvailable()) {
+            ImapMetrics.attach(this, connection);
+        }
+    }
+
     public BackupFolder getSMSBackupFolder() throws MessagingException
     {
         String label = PrefStore.getImapFolder(context);
@@ -73,11 +131,23 @@ public class BackupImapStore extends ImapStore {
         try {
           final BackupFolder folder = new BackupFolder(this, label, type);
 
-          if (!folder.exists()) {
+          // K9 connects and logs in on demand, without a pooled connection exists() does it
+          final ImapMetrics m = metrics;
+          final boolean login = m != null && ImapInternals.isAvailable() &&
+                                ImapInternals.getPooledConnections(this).isEmpty();
+          final long start = System.nanoTime();
+          final boolean exists = folder.exists();
+          if (login) m.record(ImapMetrics.LOGIN, start, System.nanoTime());
+          if (m != null && ImapInternals.isAvailable()) {
+              for (Object connection : ImapInternals.getPooledConnections(this)) attachMetrics(connection);
+          }
+
+          if (!exists) {
               folder.create(FolderType.HOLDS_MESSAGES);
               Log.i(TAG, "Label '" + label + "' does not exist yet. Creating.");
           }
           folder.open(OpenMode.READ_WRITE);
+          openFolders.add(folder);
           return folder;
         } catch (java.lang.NumberFormatException e) {
           // thrown inside K9
@@ -86,17 +156,261 @@ public class BackupImapStore extends ImapStore {
         }
     }
 
+    /** Notified once the server confirmed an appended message. */
+    interface AppendListener {
+        void onAppended(BackupFolder folder, Message message);
+    }
+
     public class BackupFolder extends ImapFolder {
+        /** Max. number of APPENDs sent without having seen the server's response. */
+        static final int MAX_PIPELINED_APPENDS = 10;
+
+        /** LITERAL- only allows non-synchronizing literals up to this size (RFC 7888). */
+        static final int MAX_LITERAL_MINUS_SIZE = 4096;
+
+        /** Keeps commands well below the line length limits of common servers. */
+        static final int MAX_UID_SET_LENGTH = 900;
+
         private final DataType type;
 
+        /** APPENDs sent with non-synchronizing literals, by tag, awaiting their response */
+        private final Map<String, Message> pendingAppends = new LinkedHashMap<String, Message>();
+
+        private final List<AppendListener> appendListeners = new ArrayList<AppendListener>();
+
+        /** The UIDVALIDITY reported when the folder was selected, null if unknown */
+        private String uidValidity;
+
         public BackupFolder(ImapStore store, String name, DataType type) {
             super(store, name);
             this.type = type;
         }
 
+        @Override
+        public void open(OpenMode mode) throws MessagingException {
+            super.open(mode);
+            attachMetrics(ImapInternals.isAvailable() ? ImapInternals.getConnection(this) : null);
+        }
+
+        @Override
+        public List<ImapResponse> internalOpen(OpenMode mode) throws MessagingException {
+            final boolean select = !isOpen();
+            final List<ImapResponse> responses = super.internalOpen(mode);
+            if (select) {
+                uidValidity = null;
+                for (ImapResponse response : responses) {
+                    // * OK [UIDVALIDITY 3857529045] UIDs valid
+                    if (response.size() > 1 && response.get(1) instanceof ImapList) {
+                        final ImapList code = response.getList(1);
+                        if (code.size() > 1 && "UIDVALIDITY".equalsIgnoreCase(code.getString(0))) {
+                            uidValidity = code.getString(1);
+                        }
+                    }
+                }
+            }
+            return responses;
+        }
+
+        /** @return the UIDVALIDITY of the folder, null if the server didn't report one */
+        public String getUidValidity() {
+            return uidValidity;
+        }
+
+        /**
+         * @return true if UIDs recorded for the given folder and UIDVALIDITY still refer to
+         *         the same messages in this folder
+         */
+        public boolean isUidValid(String folder, String validity) {
+            return uidValidity != null && uidValidity.equals(validity) && getName().equals(folder);
+        }
+
+        /**
+         * Appends messages. If the server supports non-synchronizing literals (LITERAL+ or
+         * LITERAL-, RFC 7888) the message literal is sent right after the command instead
+         * of waiting for the server's continuation, and up to {@link #MAX_PIPELINED_APPENDS}
+         * commands are pipelined. Call {@link #flushAppends()} to wait for the server to
+         * confirm them. The UIDs of pipelined messages are only set if the server reports
+         * them (UIDPLUS).
+         */
+        @Override
+        public void appendMessages(Message[] messages) throws MessagingException {
+            final Object connection = ImapInternals.isAvailable() ? ImapInternals.getConnection(this) : null;
+            final boolean literalPlus  = connection != null && ImapInternals.hasCapability(connection, "LITERAL+");
+            final boolean literalMinus = connection != null && ImapInternals.hasCapability(connection, "LITERAL-");
+
+            if (!literalPlus && !literalMinus) {
+                appendSynchronizing(messages);
+                return;
+            }
+
+            try {
+                for (Message message : messages) {
+                    final CountingOutputStream counter = new CountingOutputStream();
+                    final EOLConvertingOutputStream eolCounter = new EOLConvertingOutputStream(counter);
+                    message.writeTo(eolCounter);
+                    eolCounter.flush();
+
+                    if (!literalPlus && counter.getCount() > MAX_LITERAL_MINUS_SIZE) {
+                        flushAppends();
+                        appendSynchronizing(new Message[] { message });
+                        continue;
+                    }
+
+                    final String tag = ImapInternals.sendCommand(connection,
+                        String.format("APPEND \"%s\" (%s) \"%s\" {%d+}",
+                            ImapInternals.encodeFolderName(BackupImapStore.this, getPrefixedName()),
+                            ImapInternals.combineFlags(this, message.getFlags()),
+                            INTERNAL_DATE.format(message.getInternalDate() != null ?
+                                                 message.getInternalDate() : new Date()),
+                            counter.getCount()));
+
+                    final EOLConvertingOutputStream eolOut =
+                        new EOLConvertingOutputStream(ImapInternals.getOutputStream(connection));
+                    message.writeTo(eolOut);
+                    eolOut.write('\r');
+                    eolOut.write('\n');
+                    eolOut.flush();
+
+                    pendingAppends.put(tag, message);
+                    readAppendResponses(connection, MAX_PIPELINED_APPENDS);
+                }
+            } catch (IOException ioe) {
+                pendingAppends.clear();
+                throw ImapInternals.ioExceptionHandler(this, connection, ioe);
+            }
+        }
+
+        private void appendSynchronizing(Message[] messages) throws MessagingException {
+            super.appendMessages(messages);
+            for (Message message : messages) notifyAppended(message);
+        }
+
+        /** @return true if the folder contains a message with the given Message-ID */
+        public boolean containsMessageId(String messageId) throws MessagingException {
+            return getUid(messageId) != null;
+        }
+
+        /** @return the UID of the message with the given Message-ID, or null if not found */
+        public String getUid(String messageId) throws MessagingException {
+            final MimeMessage message = new MimeMessage();
+            message.setHeader("Message-ID", messageId);
+            return getUidFromMessageId(message);
+        }
+
+        /**
+         * Sets or clears a flag on the given messages with as few commands as possible:
+         * consecutive UIDs are sent as ranges, i.e. <code>UID STORE 1:5,8 +FLAGS.SILENT (\Seen)</code>
+         */
+        public void setFlags(List<String> uids, Flag flag, boolean value) throws MessagingException {
+            if (uids.isEmpty()) return;
+            flushAppends();
+
+            final String name = getFlagName(flag);
+            try {
+                for (String set : toUidSets(uids, MAX_UID_SET_LENGTH)) {
+                    executeSimpleCommand(String.format("UID STORE %s %sFLAGS.SILENT (%s)",
+                                                       set, value ? "+" : "-", name));
+                }
+            } catch (IOException ioe) {
+                throw new MessagingException("could not store flags", ioe);
+            }
+        }
+
+        /**
+         * Flags the messages \Deleted and expunges them with UID EXPUNGE if the server
+         * supports UIDPLUS. Without it they are only flagged: a plain EXPUNGE would also
+         * remove other messages flagged \Deleted in the folder, the user's mail client
+         * (or the server) expunges them eventually.
+         */
+        public void deleteMessages(List<String> uids) throws MessagingException {
+            if (uids.isEmpty()) return;
+            setFlags(uids, Flag.DELETED, true);
+
+            final Object connection = ImapInternals.isAvailable() ? ImapInternals.getConnection(this) : null;
+            if (connection != null && ImapInternals.hasCapability(connection, "UIDPLUS")) {
+                try {
+                    for (String set : toUidSets(uids, MAX_UID_SET_LENGTH)) {
+                        executeSimpleCommand("UID EXPUNGE " + set);
+                    }
+                } catch (IOException ioe) {
+                    throw new MessagingException("could not expunge", ioe);
+                }
+            } else if (LOCAL_LOGV) {
+                Log.v(TAG, "no UIDPLUS, leaving " + uids.size() + " message(s) flagged \\Deleted");
+            }
+        }
+
+        void addAppendListener(AppendListener listener) {
+            appendListeners.add(listener);
+        }
+
+        private void notifyAppended(Message message) {
+            for (AppendListener listener : appendListeners) listener.onAppended(this, message);
+        }
+
+        /**
+         * Waits until the server confirmed all pipelined APPEND commands.
+         * @throws MessagingException if one of them failed
+         */
+        public void flushAppends() throws MessagingException {
+            if (pendingAppends.isEmpty()) return;
+
+            final Object connection = ImapInternals.getConnection(this);
+            try {
+                readAppendResponses(connection, 0);
+            } catch (IOException ioe) {
+                pendingAppends.clear();
+                throw ImapInternals.ioExceptionHandler(this, connection, ioe);
+            }
+        }
+
+        private void readAppendResponses(Object connection, int maxPending)
+            throws IOException, MessagingException {
+            MessagingException failure = null;
+            // after a failure keep reading so the connection stays in sync
+            while (pendingAppends.size() > (failure == null ? maxPending : 0)) {
+                final ImapResponse response = ImapInternals.readResponse(connection);
+                final String tag = ImapInternals.getTag(response);
+                if (tag == null) {
+                    handleUntaggedResponse(response);
+                    continue;
+                }
+
+                final Message message = pendingAppends.remove(tag);
+                if (message == null) {
+                    throw new IOException("unexpected response " + response);
+                } else if (!"OK".equalsIgnoreCase(response.getString(0))) {
+                    if (failure == null) failure = new MessagingException("APPEND failed: " + response);
+                    continue;
+                }
+
+                // [APPENDUID <uidvalidity> <uid>]
+                if (response.size() > 1 && response.get(1) instanceof ImapList) {
+                    final ImapList code = response.getList(1);
+                    if (code.size() > 2 && "APPENDUID".equalsIgnoreCase(code.getString(0))) {
+                        message.setUid(code.getString(2));
+                    }
+                }
+                notifyAppended(message);
+            }
+            if (failure != null) throw failure;
+        }
+
+        @Override
+        public void close() {
+            try {
+                flushAppends();
+            } catch (MessagingException e) {
+                Log.w(TAG, "error flushing appends", e);
+            }
+            openFolders.remove(this);
+            super.close();
+        }
+
         public List<Message> getMessages(final int max, final boolean flagged, final Date since)
           throws MessagingException {
             if (LOCAL_LOGV) Log.v(TAG, String.format("getMessages(%d, %b, %s)", max, flagged, since));
+            flushAppends();
 
             final List<Message> messages;
             final ImapSearcher searcher = new ImapSearcher() {
@@ -163,6 +477,54 @@ public class BackupImapStore extends ImapStore {
         @Override public int hashCode() { return super.hashCode(); }
     }
 
+    private static String getFlagName(Flag flag) {
+        switch (flag) {
+            case SEEN:     return "\\Seen";
+            case DELETED:  return "\\Deleted";
+            case FLAGGED:  return "\\Flagged";
+            case ANSWERED: return "\\Answered";
+            default: throw new IllegalArgumentException("unsupported flag " + flag);
+        }
+    }
+
+    /**
+     * Compresses numeric UIDs into IMAP sequence sets ("1:5,8,10:12"), split so that
+     * no set is longer than maxLength.
+     */
+    static List<String> toUidSets(List<String> uids, int maxLength) {
+        final long[] sorted = new long[uids.size()];
+        int n = 0;
+        for (String uid : uids) {
+            try {
+                sorted[n] = Long.parseLong(uid);
+                n++;
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "ignoring invalid uid " + uid);
+            }
+        }
+        Arrays.sort(sorted, 0, n);
+
+        final List<String> sets = new ArrayList<String>();
+        final StringBuilder set = new StringBuilder();
+        int i = 0;
+        while (i < n) {
+            int j = i;
+            while (j + 1 < n && sorted[j + 1] <= sorted[j] + 1) j++;
+
+            final String range = sorted[i] == sorted[j] ? String.valueOf(sorted[i]) :
+                                 sorted[i] + ":" + sorted[j];
+            if (set.length() > 0 && set.length() + range.length() + 1 > maxLength) {
+                sets.add(set.toString());
+                set.setLength(0);
+            }
+            if (set.length() > 0) set.append(',');
+            set.append(range);
+            i = j + 1;
+        }
+        if (set.length() > 0) sets.add(set.toString());
+        return sets;
+    }
+
     static class MessageComparator implements Comparator<Message> {
       static final MessageComparator INSTANCE = new MessageComparator();
       static final Date EARLY = new Date(0);
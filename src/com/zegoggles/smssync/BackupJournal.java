@@ -0,0 +1,240 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.*;
+import static com.zegoggles.smssync.CursorToMessage.DataType;
+
+/**
+ * Append-only record of the batches of the current backup run, so a run which got
+ * interrupted (process killed, connection lost) can be reconciled with the server
+ * before the next one starts.
+ *
+ * Before a batch is uploaded its Message-IDs and the watermarks before and after the
+ * batch are written:
+ * <pre>B &lt;type&gt; &lt;prevDate&gt; &lt;maxDate&gt; &lt;message-id&gt;...</pre>
+ * (or <code>R ...</code> for batches of the recent lane, see {@link Watermarks}).
+ * Once the server confirmed a message (and reported its UID, if it supports UIDPLUS):
+ * <pre>A &lt;message-id&gt; &lt;uid or -&gt;</pre>
+ *
+ * Records are buffered. A batch record is handed to the OS before the batch is uploaded,
+ * which survives the process getting killed, and the journal is only synced to disk
+ * before the watermarks are checkpointed: a watermark must never be durable without
+ * the batches it covers.
+ *
+ * The journal is deleted after a run completed successfully.
+ */
+class BackupJournal implements BackupImapStore.AppendListener, Watermarks.CheckpointListener {
+    private static final String FILE_NAME = "backup_journal";
+    private static final String NO_UID = "-";
+
+    static class Batch {
+        final DataType type;
+        final boolean recent;
+        final long prevDate, maxDate;
+        final List<String> messageIds;
+
+        Batch(DataType type, boolean recent, long prevDate, long maxDate, List<String> messageIds) {
+            this.type = type;
+            this.recent = recent;
+            this.prevDate = prevDate;
+            this.maxDate = maxDate;
+            this.messageIds = messageIds;
+        }
+    }
+
+    private final File file;
+    private FileOutputStream fileOut;
+    private OutputStream out;
+
+    /** Messages known to be on the server although they are past the watermark */
+    private final Set<String> uploaded = new HashSet<String>();
+
+    BackupJournal(Context context) {
+        file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /** @return true if a previous run left batches behind */
+    boolean needsRecovery() {
+        return file.length() > 0;
+    }
+
+    /** @return the batches recorded by the previous run, in upload order */
+    List<Batch> getBatches() throws IOException {
+        final List<Batch> batches = new ArrayList<Batch>();
+        for (String[] record : read()) {
+            if (("B".equals(record[0]) || "R".equals(record[0])) && record.length >= 4) {
+                try {
+                    batches.add(new Batch(DataType.valueOf(record[1]),
+                                          "R".equals(record[0]),
+                                          Long.parseLong(record[2]),
+                                          Long.parseLong(record[3]),
+                                          Arrays.asList(record).subList(4, record.length)));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "invalid journal record " + Arrays.toString(record));
+                }
+            }
+        }
+        return batches;
+    }
+
+    /** @return the Message-IDs of all messages confirmed by the server in the previous run */
+    Set<String> getAppended() throws IOException {
+        final Set<String> appended = new HashSet<String>();
+        for (String[] record : read()) {
+            if ("A".equals(record[0]) && record.length >= 2) appended.add(record[1]);
+        }
+        return appended;
+    }
+
+    /**
+     * Starts a new journal after recovery.
+     * @param uploaded messages on the server which are past the (reset) watermark and
+     *                 should not be uploaded again
+     */
+    void reset(Collection<String> uploaded) throws IOException {
+        clear();
+        this.uploaded.addAll(uploaded);
+        for (String messageId : uploaded) {
+            write("A " + messageId + " " + NO_UID);
+        }
+        sync();
+    }
+
+    /**
+     * Records a batch before it gets uploaded.
+     *
+     * @return the messages of the batch which still need to be uploaded
+     */
+    List<Message> beginBatch(DataType type, boolean recent, long prevDate, long maxDate,
+                             List<Message> messages) {
+        final StringBuilder record = new StringBuilder(recent ? "R " : "B ")
+            .append(type).append(' ')
+            .append(prevDate).append(' ')
+            .append(maxDate);
+
+        final List<Message> upload = new ArrayList<Message>(messages.size());
+        final List<String> skipped = new ArrayList<String>();
+        for (Message message : messages) {
+            final String messageId = getMessageId(message);
+            if (messageId != null) record.append(' ').append(messageId);
+
+            if (messageId != null && uploaded.contains(messageId)) {
+                skipped.add(messageId);
+            } else {
+                upload.add(message);
+            }
+        }
+
+        try {
+            write(record.toString());
+            for (String messageId : skipped) {
+                write("A " + messageId + " " + NO_UID);
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "error writing journal", e);
+        }
+        if (LOCAL_LOGV && !skipped.isEmpty()) Log.v(TAG, "skipping already uploaded " + skipped);
+        return upload;
+    }
+
+    public void onAppended(BackupImapStore.BackupFolder folder, Message message) {
+        final String messageId = getMessageId(message);
+        if (messageId == null) return;
+
+        try {
+            // buffered, a lost record only costs a lookup during recovery
+            write("A " + messageId + " " + (message.getUid() != null ? message.getUid() : NO_UID));
+        } catch (IOException e) {
+            Log.w(TAG, "error writing journal", e);
+        }
+    }
+
+    public void beforeCheckpoint() {
+        try {
+            sync();
+        } catch (IOException e) {
+            Log.w(TAG, "error syncing journal", e);
+        }
+    }
+
+    /** Closes the journal, keeping its contents for the next run. */
+    void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing journal", e);
+            }
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    /** Deletes the journal, called after the watermarks have been stored. */
+    void clear() {
+        close();
+        uploaded.clear();
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "could not delete " + file);
+        }
+    }
+
+    private void write(String record) throws IOException {
+        if (out == null) {
+            fileOut = new FileOutputStream(file, true);
+            out = new BufferedOutputStream(fileOut, 8192);
+        }
+        out.write((record + "\n").getBytes("UTF-8"));
+    }
+
+    private void sync() throws IOException {
+        if (out != null) {
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    private List<String[]> read() throws IOException {
+        final List<String[]> records = new ArrayList<String[]>();
+        if (!file.exists()) return records;
+
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the last line might be incomplete
+                if (line.length() > 0) records.add(line.split(" "));
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static String getMessageId(Message message) {
+        try {
+            return message.getMessageId();
+        } catch (MessagingException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.zegoggles.smssync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.CallLog;
+import android.util.Log;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.*;
+import static com.zegoggles.smssync.CursorToMessage.DataType;
+import static com.zegoggles.smssync.CursorToMessage.Headers;
+
+/**
+ * Local record of every backed up item, keyed by provider _id: a hash of the fields
+ * which can still change after the backup (read status, type, ...) and where it ended
+ * up on the server. A single pass over a provider cursor is enough to find out which
+ * items were changed or deleted since they were backed up, see {@link #diff}.
+ *
+ * A UID is only meaningful in the folder and UIDVALIDITY it was assigned in, both are
+ * recorded with it: after the label got renamed or the server reset its UIDs, the item
+ * has to be looked up by Message-ID instead, see {@link BackupImapStore.BackupFolder#isUidValid}.
+ */
+class BackupState extends SQLiteOpenHelper implements BackupImapStore.AppendListener {
+    private static final String DATABASE_NAME = "backup_state.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE = "items";
+    private static final String TYPE = "type";
+    private static final String ITEM_ID = "item_id";
+    private static final String HASH = "hash";
+    private static final String MESSAGE_ID = "message_id";
+    private static final String UID = "uid";
+    private static final String FOLDER = "folder";
+    private static final String UID_VALIDITY = "uid_validity";
+
+    /** Position of the read column in {@link #getColumns} for SMS and MMS */
+    private static final int READ_INDEX = 1;
+
+    /** Rows are written in one transaction once this many have been recorded. */
+    private static final int MAX_PENDING = 100;
+
+    private final List<Item> pending = new ArrayList<Item>();
+
+    static class Item {
+        final DataType type;
+        final long id;
+        final long hash;
+        final String messageId, uid;
+        /** Where the UID was assigned, null if unknown */
+        final String folder, uidValidity;
+        /** The current values of {@link BackupState#getColumns}, only set for changed items */
+        final String[] values;
+
+        Item(DataType type, long id, long hash, String messageId,
+             String uid, String folder, String uidValidity) {
+            this(type, id, hash, messageId, uid, folder, uidValidity, null);
+        }
+
+        Item(DataType type, long id, long hash, String messageId,
+             String uid, String folder, String uidValidity, String[] values) {
+            this.type = type;
+            this.id = id;
+            this.hash = hash;
+            this.messageId = messageId;
+            this.uid = uid;
+            this.folder = folder;
+            this.uidValidity = uidValidity;
+            this.values = values;
+        }
+
+        /** @return the item with a UID valid in the folder */
+        Item withUid(String uid, BackupImapStore.BackupFolder folder) {
+            return new Item(type, id, hash, messageId, uid, folder.getName(), folder.getUidValidity(), values);
+        }
+
+        /** @return the current read status of a changed SMS or MMS */
+        boolean isRead() {
+            return values != null && type != DataType.CALLLOG && "1".equals(values[READ_INDEX]);
+        }
+
+        @Override public String toString() {
+            return type + ":" + id + " " + messageId + " (uid " + uid + " in " + folder + ")";
+        }
+    }
+
+    /** Items changed or deleted since they were backed up. */
+    static class Diff {
+        final DataType type;
+        final List<Item> changed = new ArrayList<Item>();
+        final List<Item> deleted = new ArrayList<Item>();
+        /** All ids currently in the provider */
+        IdBitmap ids = IdBitmap.EMPTY;
+        /** The ids at the time of the last diff */
+        IdBitmap previous = IdBitmap.EMPTY;
+        /** The number of items recorded as backed up */
+        long recorded;
+
+        Diff(DataType type) {
+            this.type = type;
+        }
+
+        boolean isEmpty() {
+            return changed.isEmpty() && deleted.isEmpty();
+        }
+    }
+
+    private final Context context;
+
+    BackupState(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (" +
+                   TYPE + " TEXT NOT NULL, " +
+                   ITEM_ID + " INTEGER NOT NULL, " +
+                   HASH + " INTEGER NOT NULL, " +
+                   MESSAGE_ID + " TEXT, " +
+                   UID + " TEXT, " +
+                   FOLDER + " TEXT, " +
+                   UID_VALIDITY + " TEXT, " +
+                   "PRIMARY KEY (" + TYPE + ", " + ITEM_ID + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // UIDs recorded so far can't be trusted, their items get looked up by Message-ID
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + FOLDER + " TEXT");
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + UID_VALIDITY + " TEXT");
+        }
+    }
+
+    /**
+     * The provider columns whose values are hashed, in the same order as
+     * {@link #getHeaders(DataType)}.
+     */
+    static String[] getColumns(DataType type) {
+        switch (type) {
+            case SMS:     return new String[] { SmsConsts.TYPE, SmsConsts.READ, SmsConsts.STATUS };
+            case MMS:     return new String[] { MmsConsts.TYPE, MmsConsts.READ };
+            case CALLLOG: return new String[] { CallLog.Calls.TYPE, CallLog.Calls.DURATION };
+            default: throw new IllegalArgumentException("unknown type " + type);
+        }
+    }
+
+    /** The message headers holding the values of {@link #getColumns(DataType)} */
+    static String[] getHeaders(DataType type) {
+        switch (type) {
+            case SMS:     return new String[] { Headers.TYPE, Headers.READ, Headers.STATUS };
+            case MMS:     return new String[] { Headers.TYPE, Headers.READ };
+            case CALLLOG: return new String[] { Headers.TYPE, Headers.DURATION };
+            default: throw new IllegalArgumentException("unknown type " + type);
+        }
+    }
+
+    /**
+     * Records a message which is now on the server.
+     * @param id the provider id, or -1 to take it from the message's headers
+     * @param folder the folder the message is in
+     */
+    void record(DataType type, long id, Message message, BackupImapStore.BackupFolder folder) {
+        final String[] headers = getHeaders(type);
+        final String[] values = new String[headers.length];
+        for (int i = 0; i < headers.length; i++) values[i] = getHeader(message, headers[i]);
+
+        if (id < 0) {
+            try {
+                id = Long.parseLong(getHeader(message, Headers.ID));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "message without id: " + message);
+                return;
+            }
+        }
+        record(newItem(type, id, hash(values), message, folder));
+    }
+
+    /**
+     * Records a restored message.
+     * @param values the values inserted into the provider
+     */
+    void record(DataType type, long id, ContentValues values, Message message) {
+        final String[] columns = getColumns(type);
+        final String[] hashed = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) hashed[i] = values.getAsString(columns[i]);
+
+        final Folder folder = message.getFolder();
+        record(newItem(type, id, hash(hashed), message,
+                       folder instanceof BackupImapStore.BackupFolder ? (BackupImapStore.BackupFolder) folder : null));
+    }
+
+    private static Item newItem(DataType type, long id, long hash, Message message,
+                                BackupImapStore.BackupFolder folder) {
+        // a UID without its folder's UIDVALIDITY is worthless
+        final String uidValidity = folder != null ? folder.getUidValidity() : null;
+        return uidValidity != null ?
+            new Item(type, id, hash, getMessageId(message), message.getUid(), folder.getName(), uidValidity) :
+            new Item(type, id, hash, getMessageId(message), null, null, null);
+    }
+
+    public void onAppended(BackupImapStore.BackupFolder folder, Message message) {
+        final String type = getHeader(message, Headers.DATATYPE);
+        try {
+            if (type != null) record(DataType.valueOf(type), -1, message, folder);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "unknown datatype " + type);
+        }
+    }
+
+    void record(Item item) {
+        pending.add(item);
+        if (pending.size() >= MAX_PENDING) flush();
+    }
+
+    /** Writes recorded items to the database. */
+    void flush() {
+        if (pending.isEmpty()) return;
+
+        final SQLiteDatabase db = getWritableDatabase();
+        final SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE +
+            " (" + TYPE + ", " + ITEM_ID + ", " + HASH + ", " + MESSAGE_ID + ", " + UID + ", " +
+            FOLDER + ", " + UID_VALIDITY + ")" +
+            " VALUES (?, ?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (Item item : pending) {
+                insert.bindString(1, item.type.toString());
+                insert.bindLong(2, item.id);
+                insert.bindLong(3, item.hash);
+                bindStringOrNull(insert, 4, item.messageId);
+                bindStringOrNull(insert, 5, item.uid);
+                bindStringOrNull(insert, 6, item.folder);
+                bindStringOrNull(insert, 7, item.uidValidity);
+                insert.execute();
+            }
+            db.setTransactionSuccessful();
+            if (LOCAL_LOGV) Log.v(TAG, "recorded " + pending.size() + " item(s)");
+            pending.clear();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    void remove(List<Item> items) {
+        if (items.isEmpty()) return;
+
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Item item : items) {
+                db.delete(TABLE, TYPE + " = ? AND " + ITEM_ID + " = ?",
+                          new String[] { item.type.toString(), String.valueOf(item.id) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    boolean isEmpty() {
+        final Cursor c = getReadableDatabase().rawQuery("SELECT 1 FROM " + TABLE + " LIMIT 1", null);
+        try {
+            return !c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    void clear() {
+        pending.clear();
+        getWritableDatabase().delete(TABLE, null, null);
+        for (DataType type : DataType.values()) getSnapshotFile(type).delete();
+    }
+
+    /** Forgets all items, e.g. after the sync data has been reset. */
+    static void reset(Context context) {
+        final BackupState state = new BackupState(context);
+        try {
+            state.clear();
+        } finally {
+            state.close();
+        }
+    }
+
+    /**
+     * Compares the provider's current items with the recorded ones. Changes are found by
+     * comparing hashes, deletions by comparing the ids with the snapshot taken by the
+     * last {@link #commit}. Items not recorded yet are left to the regular backup.
+     *
+     * @param items cursor with the provider's _id followed by {@link #getColumns(DataType)},
+     *              sorted by _id
+     */
+    Diff diff(DataType type, Cursor items) {
+        flush();
+
+        final Diff diff = new Diff(type);
+        final Cursor recorded = getReadableDatabase().query(TABLE,
+            new String[] { ITEM_ID, HASH, MESSAGE_ID, UID, FOLDER, UID_VALIDITY },
+            TYPE + " = ?", new String[] { type.toString() },
+            null, null, ITEM_ID);
+
+        final int columns = getColumns(type).length;
+        final String[] values = new String[columns];
+        final IdBitmap.Builder ids = new IdBitmap.Builder();
+        final IdBitmap.Builder recordedIds = new IdBitmap.Builder();
+        try {
+            boolean hasRecorded = recorded.moveToNext();
+            while (items.moveToNext()) {
+                final long id = items.getLong(0);
+                ids.add(id);
+
+                while (hasRecorded && recorded.getLong(0) < id) {
+                    recordedIds.add(recorded.getLong(0));
+                    hasRecorded = recorded.moveToNext();
+                }
+                if (!hasRecorded || recorded.getLong(0) != id) continue; // not backed up yet
+
+                for (int i = 0; i < columns; i++) values[i] = items.getString(i + 1);
+                final long hash = hash(values);
+                if (hash != recorded.getLong(1)) {
+                    diff.changed.add(new Item(type, id, hash, recorded.getString(2), recorded.getString(3),
+                                              recorded.getString(4), recorded.getString(5), values.clone()));
+                }
+            }
+            while (hasRecorded) {
+                recordedIds.add(recorded.getLong(0));
+                hasRecorded = recorded.moveToNext();
+            }
+        } finally {
+            recorded.close();
+        }
+        diff.ids = ids.build();
+        final IdBitmap recordedIdBitmap = recordedIds.build();
+        diff.recorded = recordedIdBitmap.size();
+
+        // without a snapshot (first run) fall back to what has been recorded so far
+        final IdBitmap snapshot = readSnapshot(type);
+        diff.previous = snapshot != null ? snapshot : recordedIdBitmap;
+
+        final IdBitmap deleted = diff.previous.andNot(diff.ids);
+        if (!deleted.isEmpty()) diff.deleted.addAll(getItems(type, deleted));
+        if (LOCAL_LOGV) {
+            Log.v(TAG, String.format("%s: %d ids in %d bytes, %d deleted", type, diff.ids.size(),
+                                     diff.ids.getSizeInBytes(), deleted.size()));
+        }
+        return diff;
+    }
+
+    /**
+     * Stores the outcome of a diff once it has been applied: records changed items with
+     * their new hash, forgets deleted ones and keeps the ids as snapshot for the next diff.
+     */
+    void commit(Diff diff) {
+        for (Item item : diff.changed) record(item);
+        flush();
+        remove(diff.deleted);
+        if (!diff.ids.equals(diff.previous) || !getSnapshotFile(diff.type).exists()) {
+            try {
+                writeSnapshot(diff.type, diff.ids);
+            } catch (IOException e) {
+                Log.w(TAG, "error writing snapshot", e);
+            }
+        }
+    }
+
+    private List<Item> getItems(DataType type, IdBitmap ids) {
+        final List<Item> result = new ArrayList<Item>();
+        final Cursor c = getReadableDatabase().query(TABLE,
+            new String[] { ITEM_ID, HASH, MESSAGE_ID, UID, FOLDER, UID_VALIDITY },
+            TYPE + " = ?", new String[] { type.toString() },
+            null, null, ITEM_ID);
+        try {
+            while (c.moveToNext()) {
+                if (ids.contains(c.getLong(0))) {
+                    result.add(new Item(type, c.getLong(0), c.getLong(1), c.getString(2), c.getString(3),
+                                        c.getString(4), c.getString(5)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private File getSnapshotFile(DataType type) {
+        return new File(context.getFilesDir(), "ids_" + type.toString().toLowerCase());
+    }
+
+    private IdBitmap readSnapshot(DataType type) {
+        final File file = getSnapshotFile(type);
+        if (!file.exists()) return null;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return IdBitmap.readFrom(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error reading snapshot", e);
+            return null;
+        }
+    }
+
+    /** Writes to a temporary file first and renames it, so the old snapshot survives a crash. */
+    private void writeSnapshot(DataType type, IdBitmap ids) throws IOException {
+        final File file = getSnapshotFile(type);
+        final File tmp = new File(file.getPath() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            ids.writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("could not rename " + tmp);
+    }
+
+    /** 64 bit FNV-1a of the values, null and empty values hash the same. */
+    static long hash(String[] values) {
+        long hash = 0xcbf29ce484222325L;
+        for (String value : values) {
+            if (value != null) {
+                for (int i = 0; i < value.length(); i++) {
+                    hash ^= value.charAt(i);
+                    hash *= 0x100000001b3L;
+                }
+            }
+            hash ^= 0x1f; // separator
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static String getMessageId(Message message) {
+        try {
+            return message.getMessageId();
+        } catch (MessagingException e) {
+            return null;
+        }
+    }
+
+    private static String getHeader(Message message, String name) {
+        try {
+            final String[] values = message.getHeader(name);
+            return values != null && values.length > 0 ? values[0] : null;
+        } catch (MessagingException e) {
+            return null;
+        }
+    }
+}
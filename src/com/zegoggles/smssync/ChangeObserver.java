@@ -0,0 +1,97 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.*;
+import static com.zegoggles.smssync.CursorToMessage.DataType;
+
+/**
+ * Watches the SMS, MMS and call log providers while the app is running. A change marks
+ * its data type as dirty and schedules an incoming backup, which then only looks at the
+ * dirty types. Unlike SMS_RECEIVED this also catches sent messages, MMS and calls.
+ *
+ * There is one observer per provider since onChange() does not tell which uri changed
+ * (before API level 16), so a single observer on content://mms-sms could not tell SMS
+ * and MMS apart.
+ */
+class ChangeObserver extends ContentObserver {
+    private final Context context;
+    private final DataType type;
+
+    private ChangeObserver(Context context, DataType type) {
+        super(null);
+        this.context = context;
+        this.type = type;
+    }
+
+    static void register(Context context) {
+        for (DataType type : DataType.values()) {
+            context.getContentResolver().registerContentObserver(ServiceBase.getProvider(type), true,
+                                                                 new ChangeObserver(context, type));
+        }
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        if (LOCAL_LOGV) Log.v(TAG, "onChange(" + type + ")");
+
+        // restores write to the providers themselves
+        if (!isBackupEnabled(type) || SmsRestoreService.isWorking()) return;
+
+        markDirty(context, EnumSet.of(type));
+        if (PrefStore.isEnableAutoSync(context) &&
+            PrefStore.isLoginInformationSet(context) &&
+            !PrefStore.isFirstSync(context)) {
+            Alarms.scheduleIncomingSync(context);
+        }
+    }
+
+    private boolean isBackupEnabled(DataType type) {
+        switch (type) {
+            case MMS:     return PrefStore.isMmsBackupEnabled(context);
+            case CALLLOG: return PrefStore.isCallLogBackupEnabled(context);
+            default:      return true;
+        }
+    }
+
+    /** Marks types as changed; kept in the preferences, the process might die before the backup. */
+    static synchronized void markDirty(Context context, Collection<DataType> types) {
+        final Set<DataType> dirty = getDirtyTypes(context);
+        if (dirty.addAll(types)) {
+            final StringBuilder value = new StringBuilder();
+            for (DataType t : dirty) {
+                if (value.length() > 0) value.append(',');
+                value.append(t);
+            }
+            PrefStore.getPrefs(context).edit().putString(PrefStore.PREF_DIRTY_TYPES, value.toString()).commit();
+        }
+    }
+
+    /** @return the types which changed since the last call, and resets them */
+    static synchronized Set<DataType> takeDirtyTypes(Context context) {
+        final Set<DataType> dirty = getDirtyTypes(context);
+        if (!dirty.isEmpty()) {
+            PrefStore.getPrefs(context).edit().remove(PrefStore.PREF_DIRTY_TYPES).commit();
+        }
+        return dirty;
+    }
+
+    private static Set<DataType> getDirtyTypes(Context context) {
+        final Set<DataType> dirty = EnumSet.noneOf(DataType.class);
+        final String value = PrefStore.getPrefs(context).getString(PrefStore.PREF_DIRTY_TYPES, "");
+        for (String name : value.split(",")) {
+            try {
+                if (name.length() > 0) dirty.add(DataType.valueOf(name));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "unknown type " + name);
+            }
+        }
+        return dirty;
+    }
+}
@@ -0,0 +1,196 @@
+package com.zegoggles.smssync;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * A log file of fixed maximum size: once full, new lines overwrite the oldest ones, so
+ * the log never has to be rotated (copied). The file starts with a one line text header
+ * holding the write position, the rest is plain text and stays readable:
+ *
+ * <pre>#SBP-LOG head=0000001234 wrap=1\n</pre>
+ *
+ * Not thread safe, all writes are serialized by {@link AppLog.AsyncWriter}. Readers
+ * open their own instance and read it page by page, newest first. Reading never changes
+ * the file: a log without a valid header (not converted yet, or a header caught while
+ * being written) is read as plain text, only the writer converts it.
+ */
+class CircularLogFile {
+    static final int CAPACITY = 1024 * 1024;
+
+    private static final String MAGIC = "#SBP-LOG head=";
+    private static final int HEADER_SIZE = 32;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private long head;
+    private boolean wrapped;
+    /** where the data starts, 0 for plain files being read */
+    private long base = HEADER_SIZE;
+
+    CircularLogFile(File file) {
+        this.file = file;
+    }
+
+    /** Appends data, overwriting the oldest data if needed. */
+    void append(byte[] data) throws IOException {
+        open();
+        try {
+            int off = Math.max(0, data.length - CAPACITY);
+            while (off < data.length) {
+                final int n = (int) Math.min(data.length - off, CAPACITY - head);
+                raf.seek(HEADER_SIZE + head);
+                raf.write(data, off, n);
+                off += n;
+                head += n;
+                if (head == CAPACITY) {
+                    head = 0;
+                    wrapped = true;
+                }
+            }
+            writeHeader();
+        } finally {
+            close();
+        }
+    }
+
+    /** A part of the log, made of complete lines. */
+    static class Page {
+        final String text;
+        /** where the page starts, pass it to {@link #readPage} to get the page before */
+        final long start;
+
+        Page(String text, long start) {
+            this.text = text;
+            this.start = start;
+        }
+
+        boolean hasPrevious() {
+            return start > 0;
+        }
+    }
+
+    /**
+     * Reads up to size bytes before end, with a cost independent of the size of the log.
+     * Positions are relative to the oldest byte in the log; lines written in the meantime
+     * shift them, so pages read while the log is written can overlap a bit.
+     *
+     * @param end where the page ends, -1 for the end of the log
+     */
+    Page readPage(long end, int size) throws IOException {
+        if (!file.exists()) return new Page("", 0);
+        openForReading();
+        try {
+            final long length = wrapped ? CAPACITY : head;
+            if (end < 0 || end > length) end = length;
+            final long start = Math.max(0, end - size);
+
+            final byte[] data = new byte[(int) (end - start)];
+            readAt(start, data);
+
+            // start with a complete line, the beginning of the partial one goes into the previous
+            // page. The first line of a wrapped log has been partly overwritten.
+            int from = 0;
+            if (start > 0 || wrapped) {
+                while (from < data.length && data[from] != '\n') from++;
+                if (from < data.length) {
+                    from++;
+                } else if (start > 0) {
+                    from = 0; // a line longer than a page
+                }
+            }
+            return new Page(new String(data, from, data.length - from, "UTF-8"), start > 0 ? start + from : 0);
+        } finally {
+            close();
+        }
+    }
+
+    /** Reads data at a position relative to the oldest byte. */
+    private void readAt(long position, byte[] data) throws IOException {
+        final long physical = wrapped ? (head + position) % CAPACITY : position;
+        final int first = wrapped ? (int) Math.min(data.length, CAPACITY - physical) : data.length;
+        raf.seek(base + physical);
+        raf.readFully(data, 0, first);
+        if (first < data.length) {
+            raf.seek(base);
+            raf.readFully(data, first, data.length - first);
+        }
+    }
+
+    private void openForReading() throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        if (readHeader()) {
+            base = HEADER_SIZE;
+        } else {
+            base = 0;
+            head = raf.length();
+            wrapped = false;
+        }
+    }
+
+    /** Opens the file for writing, only called by the (single) writer. */
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        base = HEADER_SIZE;
+        if (!readHeader()) {
+            if (raf.length() > 0) {
+                migrate();
+            } else {
+                head = 0;
+                wrapped = false;
+                writeHeader();
+            }
+        }
+    }
+
+    private void close() throws IOException {
+        if (raf != null) raf.close();
+        raf = null;
+    }
+
+    private boolean readHeader() throws IOException {
+        if (raf.length() < HEADER_SIZE) return false;
+
+        final byte[] header = new byte[HEADER_SIZE];
+        raf.seek(0);
+        raf.readFully(header);
+        final String s = new String(header, "US-ASCII");
+        if (!s.startsWith(MAGIC) || header[HEADER_SIZE - 1] != '\n') return false;
+        try {
+            head = Long.parseLong(s.substring(MAGIC.length(), MAGIC.length() + 10));
+            wrapped = s.charAt(HEADER_SIZE - 2) == '1';
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return head >= 0 && head < CAPACITY && HEADER_SIZE + (wrapped ? CAPACITY : head) <= raf.length();
+    }
+
+    private void writeHeader() throws IOException {
+        raf.seek(0);
+        raf.write(String.format("%s%010d wrap=%d\n", MAGIC, head, wrapped ? 1 : 0).getBytes("US-ASCII"));
+    }
+
+    /** Converts a plain (or damaged) log file, keeping its last {@link #CAPACITY} bytes. */
+    private void migrate() throws IOException {
+        if (LOCAL_LOGV) Log.v(TAG, "converting " + file + " to a circular log");
+
+        final int size = (int) Math.min(raf.length(), CAPACITY);
+        final byte[] data = new byte[size];
+        raf.seek(raf.length() - size);
+        raf.readFully(data);
+
+        raf.setLength(0);
+        head = 0;
+        wrapped = false;
+        raf.seek(HEADER_SIZE);
+        raf.write(data);
+        head = size % CAPACITY;
+        wrapped = size == CAPACITY;
+        writeHeader();
+    }
+}
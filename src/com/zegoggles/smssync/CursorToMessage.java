@@ -27,8 +27,8 @@ import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.security.MessageDigest;
 
 import android.content.Context;
 import android.content.ContentValues;
@@ -78,7 +78,6 @@ public class CursorToMessage {
     public enum DataType { MMS, SMS, CALLLOG }
 
     private static final String REFERENCE_UID_TEMPLATE = "<%s.%s@sms-backup-plus.local>";
-    private static final String MSG_ID_TEMPLATE = "<%s@sms-backup-plus.local>";
 
     private static final boolean NEW_CONTACT_API = Integer.parseInt(Build.VERSION.SDK) >=
                                                    Build.VERSION_CODES.ECLAIR;
@@ -95,7 +94,13 @@ public class CursorToMessage {
 
     private final Context mContext;
     private final Address mUserAddress;
+    private final String mEncodedUserAddress;
+    private final TemplateMessage.Block mVersionHeader;
+    private final TemplateMessage.DateFormatter mDateFormatter = new TemplateMessage.DateFormatter();
+    private long mBackupTimeSecond = -1;
+    private String mBackupTime;
     private final ThreadHelper threadHelper = new ThreadHelper();
+    private StageTimer stages = StageTimer.DISABLED;
 
     // simple LRU cache
     @SuppressWarnings("serial")
@@ -134,6 +139,8 @@ public class CursorToMessage {
     public CursorToMessage(Context ctx, String userEmail) {
         mContext = ctx;
         mUserAddress    = new Address(userEmail);
+        mEncodedUserAddress = mUserAddress.toEncodedString();
+        mVersionHeader  = new TemplateMessage.Block(Headers.VERSION, PrefStore.getVersion(ctx, true));
         mMarkAsRead     = PrefStore.getMarkAsRead(ctx);
         mReferenceValue = PrefStore.getReferenceUid(ctx);
         mPrefix         = PrefStore.getMailSubjectPrefix(mContext);
@@ -154,6 +161,10 @@ public class CursorToMessage {
         Log.d(TAG, String.format("using %s contacts API", NEW_CONTACT_API ? "new" : "old"));
     }
 
+    void setStageTimer(StageTimer stages) {
+        this.stages = stages;
+    }
+
     public ConversionResult cursorToMessages(final Cursor cursor, final int maxEntries,
                                              DataType dataType) throws MessagingException {
         final String[] columns = cursor.getColumnNames();
@@ -168,12 +179,14 @@ public class CursorToMessage {
                 msgMap.put(columns[i], cursor.getString(i));
             }
 
+            final long start = stages.start();
             Message m = null;
             switch (dataType) {
               case SMS: m = messageFromMapSms(msgMap); break;
               case MMS: m = messageFromMapMms(msgMap); break;
               case CALLLOG: m = messageFromMapCallLog(msgMap); break;
             }
+            stages.stop(StageTimer.Stage.CONVERT, start);
             if (m != null) {
               result.messageList.add(m);
               result.mapList.add(msgMap);
@@ -274,6 +287,7 @@ public class CursorToMessage {
     /* Look up a person */
     public PersonRecord lookupPerson(final String address) {
         if (!mPeopleCache.containsKey(address)) {
+            final long start = stages.start();
             Uri personUri = Uri.withAppendedPath(NEW_CONTACT_API ? ECLAIR_CONTENT_FILTER_URI :
                                                  Phones.CONTENT_FILTER_URL, Uri.encode(address));
 
@@ -295,6 +309,7 @@ public class CursorToMessage {
             mPeopleCache.put(address, record);
 
             if (c != null) c.close();
+            stages.stop(StageTimer.Stage.CONTACTS, start);
         }
         return mPeopleCache.get(address);
     }
@@ -307,45 +322,47 @@ public class CursorToMessage {
         PersonRecord record = lookupPerson(address);
         if (!backupPerson(record, DataType.SMS)) return null;
 
-        final Message msg = new MimeMessage();
-        msg.setSubject(getSubject(DataType.SMS, record));
-        msg.setBody(new TextBody(msgMap.get(SmsConsts.BODY)));
+        // headers in the order MimeMessage would write them
+        final TemplateMessage msg = new TemplateMessage();
+        msg.add("Subject", getSubject(DataType.SMS, record));
+        msg.add(TemplateMessage.TEXT_PLAIN);
 
         final int messageType = Integer.valueOf(msgMap.get(SmsConsts.TYPE));
         if (SmsConsts.MESSAGE_TYPE_INBOX == messageType) {
             // Received message
-            msg.setFrom(record.getAddress());
-            msg.setRecipient(RecipientType.TO, mUserAddress);
+            msg.add("From", record.getEncodedAddress());
+            msg.add("To", mEncodedUserAddress);
         } else {
             // Sent message
-            msg.setRecipient(RecipientType.TO, record.getAddress());
-            msg.setFrom(mUserAddress);
+            msg.add("To", record.getEncodedAddress());
+            msg.add("From", mEncodedUserAddress);
         }
 
         try {
           final Date then = new Date(Long.valueOf(msgMap.get(SmsConsts.DATE)));
-          msg.setSentDate(then);
+          msg.addDate(then, mDateFormatter.format(then));
           msg.setInternalDate(then);
-          msg.setHeader("Message-ID", createMessageId(then, address, messageType));
+          msg.add("Message-ID", createMessageId(then, address, messageType));
         } catch (NumberFormatException n) {
           Log.e(TAG, "error parsing date", n);
         }
 
         // Threading by person ID, not by thread ID. I think this value is more stable.
-        msg.setHeader("References",
-                      String.format(REFERENCE_UID_TEMPLATE, mReferenceValue, sanitize(record.getId())));
-        msg.setHeader(Headers.ID, msgMap.get(SmsConsts.ID));
-        msg.setHeader(Headers.ADDRESS, sanitize(address));
-        msg.setHeader(Headers.DATATYPE, DataType.SMS.toString());
-        msg.setHeader(Headers.TYPE, msgMap.get(SmsConsts.TYPE));
-        msg.setHeader(Headers.DATE, msgMap.get(SmsConsts.DATE));
-        msg.setHeader(Headers.THREAD_ID, msgMap.get(SmsConsts.THREAD_ID));
-        msg.setHeader(Headers.READ, msgMap.get(SmsConsts.READ));
-        msg.setHeader(Headers.STATUS, msgMap.get(SmsConsts.STATUS));
-        msg.setHeader(Headers.PROTOCOL, msgMap.get(SmsConsts.PROTOCOL));
-        msg.setHeader(Headers.SERVICE_CENTER, msgMap.get(SmsConsts.SERVICE_CENTER));
-        msg.setHeader(Headers.BACKUP_TIME, new Date().toGMTString());
-        msg.setHeader(Headers.VERSION, PrefStore.getVersion(mContext, true));
+        msg.add("References",
+                String.format(REFERENCE_UID_TEMPLATE, mReferenceValue, sanitize(record.getId())));
+        msg.add(Headers.ID, msgMap.get(SmsConsts.ID));
+        msg.add(Headers.ADDRESS, sanitize(address));
+        msg.add(Headers.DATATYPE, DataType.SMS.toString());
+        msg.add(Headers.TYPE, msgMap.get(SmsConsts.TYPE));
+        msg.add(Headers.DATE, msgMap.get(SmsConsts.DATE));
+        msg.add(Headers.THREAD_ID, msgMap.get(SmsConsts.THREAD_ID));
+        msg.add(Headers.READ, msgMap.get(SmsConsts.READ));
+        msg.add(Headers.STATUS, msgMap.get(SmsConsts.STATUS));
+        msg.add(Headers.PROTOCOL, msgMap.get(SmsConsts.PROTOCOL));
+        msg.add(Headers.SERVICE_CENTER, msgMap.get(SmsConsts.SERVICE_CENTER));
+        msg.add(Headers.BACKUP_TIME, getBackupTime());
+        msg.add(mVersionHeader);
+        msg.setText(msgMap.get(SmsConsts.BODY));
         msg.setFlag(Flag.SEEN, mMarkAsRead);
 
         return msg;
@@ -365,18 +382,19 @@ public class CursorToMessage {
         PersonRecord record = lookupPerson(address);
         if (!backupPerson(record, DataType.CALLLOG)) return null;
 
-        final Message msg = new MimeMessage();
-        msg.setSubject(getSubject(DataType.CALLLOG, record));
+        // headers in the order MimeMessage would write them
+        final TemplateMessage msg = new TemplateMessage();
+        msg.add("Subject", getSubject(DataType.CALLLOG, record));
 
         switch (callType) {
           case CallLog.Calls.OUTGOING_TYPE:
-            msg.setFrom(mUserAddress);
-            msg.setRecipient(RecipientType.TO, record.getAddress());
+            msg.add("From", mEncodedUserAddress);
+            msg.add("To", record.getEncodedAddress());
             break;
           case CallLog.Calls.MISSED_TYPE:
           case CallLog.Calls.INCOMING_TYPE:
-            msg.setFrom(record.getAddress());
-            msg.setRecipient(RecipientType.TO, mUserAddress);
+            msg.add("From", record.getEncodedAddress());
+            msg.add("To", mEncodedUserAddress);
             break;
 
           default:
@@ -399,33 +417,44 @@ public class CursorToMessage {
         text.append(record.getNumber())
             .append(" (").append(callTypeString(callType, null)).append(")");
 
-        msg.setBody(new TextBody(text.toString()));
+        msg.add(TemplateMessage.TEXT_PLAIN);
 
         try {
           Date then = new Date(Long.valueOf(msgMap.get(CallLog.Calls.DATE)));
-          msg.setSentDate(then);
+          msg.addDate(then, mDateFormatter.format(then));
           msg.setInternalDate(then);
-          msg.setHeader("Message-ID", createMessageId(then, address, callType));
+          msg.add("Message-ID", createMessageId(then, address, callType));
         } catch (NumberFormatException n) {
           Log.e(TAG, "error parsing date", n);
         }
 
         // Threading by person ID, not by thread ID. I think this value is more stable.
-        msg.setHeader("References",
-                      String.format(REFERENCE_UID_TEMPLATE, mReferenceValue, sanitize(record.getId())));
-        msg.setHeader(Headers.ID, msgMap.get(CallLog.Calls._ID));
-        msg.setHeader(Headers.ADDRESS, sanitize(address));
-        msg.setHeader(Headers.DATATYPE, DataType.CALLLOG.toString());
-        msg.setHeader(Headers.TYPE, msgMap.get(CallLog.Calls.TYPE));
-        msg.setHeader(Headers.DATE, msgMap.get(CallLog.Calls.DATE));
-        msg.setHeader(Headers.DURATION, msgMap.get(CallLog.Calls.DURATION));
-        msg.setHeader(Headers.BACKUP_TIME, new Date().toGMTString());
-        msg.setHeader(Headers.VERSION, PrefStore.getVersion(mContext, true));
+        msg.add("References",
+                String.format(REFERENCE_UID_TEMPLATE, mReferenceValue, sanitize(record.getId())));
+        msg.add(Headers.ID, msgMap.get(CallLog.Calls._ID));
+        msg.add(Headers.ADDRESS, sanitize(address));
+        msg.add(Headers.DATATYPE, DataType.CALLLOG.toString());
+        msg.add(Headers.TYPE, msgMap.get(CallLog.Calls.TYPE));
+        msg.add(Headers.DATE, msgMap.get(CallLog.Calls.DATE));
+        msg.add(Headers.DURATION, msgMap.get(CallLog.Calls.DURATION));
+        msg.add(Headers.BACKUP_TIME, getBackupTime());
+        msg.add(mVersionHeader);
+        msg.setText(text.toString());
         msg.setFlag(Flag.SEEN, mMarkAsRead);
 
         return msg;
     }
 
+    /** @return the time for {@link Headers#BACKUP_TIME}, formatted once per second */
+    private String getBackupTime() {
+        final long now = System.currentTimeMillis();
+        if (now / 1000 != mBackupTimeSecond) {
+            mBackupTimeSecond = now / 1000;
+            mBackupTime = new Date(now).toGMTString();
+        }
+        return mBackupTime;
+    }
+
     private boolean backupPerson(PersonRecord record, DataType type) {
       switch (type) {
         default:
@@ -562,7 +591,7 @@ public class CursorToMessage {
           } else {
             // attach everything else
             final Uri partUri = Uri.withAppendedPath(ServiceBase.MMS_PROVIDER, "part/" + id);
-            BodyPart part = new MimeBodyPart(new MmsAttachmentBody(partUri, mContext), contentType);
+            BodyPart part = new MimeBodyPart(new MmsAttachmentBody(partUri, mContext, stages), contentType);
             part.setHeader(MimeHeader.HEADER_CONTENT_TYPE,
                   String.format("%s;\n name=\"%s\"", contentType, fileName != null ? fileName : "attachment"));
             part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
@@ -585,23 +614,7 @@ public class CursorToMessage {
      * @return the message-id
      */
     private String createMessageId(Date sent, String address, int type) {
-      try {
-        final MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
-
-        digest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
-        digest.update(address.getBytes("UTF-8"));
-        digest.update(Integer.toString(type).getBytes("UTF-8"));
-
-        final StringBuilder sb = new StringBuilder();
-        for (byte b : digest.digest()) {
-          sb.append(String.format("%02x", b));
-        }
-        return String.format(MSG_ID_TEMPLATE, sb.toString());
-      } catch (java.io.UnsupportedEncodingException e) {
-        throw new RuntimeException(e);
-      } catch (java.security.NoSuchAlgorithmException e) {
-        throw new RuntimeException(e);
-      }
+      return MessageIds.create(sent.getTime(), address, type);
     }
     private static String getHeader(Message msg, String header) {
         try {
@@ -658,7 +671,7 @@ public class CursorToMessage {
     }
 
     private static String sanitize(String s) {
-      return s != null ? s.replaceAll("\\p{Cntrl}", "") : null;
+      return MessageIds.stripControlChars(s);
     }
 
     private static String encodeLocal(String s) {
@@ -700,6 +713,7 @@ public class CursorToMessage {
         public String name, email, number;
         public boolean unknown = false;
         private Address mAddress;
+        private String mEncodedAddress;
 
         public Address getAddress() {
           if (mAddress == null) {
@@ -722,6 +736,13 @@ public class CursorToMessage {
           return mAddress;
         }
 
+        public String getEncodedAddress() {
+          if (mEncodedAddress == null) {
+            mEncodedAddress = getAddress().toEncodedString();
+          }
+          return mEncodedAddress;
+        }
+
         public String getId() {
           return unknown ? number : String.valueOf(_id);
         }
@@ -743,12 +764,18 @@ public class CursorToMessage {
     {
         private Context mContext;
         private Uri mUri;
+        private StageTimer mStages = StageTimer.DISABLED;
 
         public MmsAttachmentBody(Uri uri, Context context) {
             mContext = context;
             mUri = uri;
         }
 
+        MmsAttachmentBody(Uri uri, Context context, StageTimer stages) {
+            this(uri, context);
+            mStages = stages;
+        }
+
         public InputStream getInputStream() throws MessagingException
         {
             try {
@@ -764,11 +791,28 @@ public class CursorToMessage {
             }
         }
 
+        /**
+         * Streams the attachment base64 encoded. Attachments can be large, so the copy stops
+         * as soon as the thread gets interrupted (the backup got canceled).
+         */
         public void writeTo(OutputStream out) throws IOException, MessagingException {
+            final long start = mStages.start();
             InputStream in = getInputStream();
-            Base64OutputStream base64Out = new Base64OutputStream(out);
-            IOUtils.copy(in, base64Out);
-            base64Out.close();
+            try {
+                Base64OutputStream base64Out = new Base64OutputStream(out);
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("canceled while writing " + mUri);
+                    }
+                    base64Out.write(buffer, 0, n);
+                }
+                base64Out.close();
+            } finally {
+                in.close();
+                mStages.stop(StageTimer.Stage.ENCODE, start);
+            }
         }
     }
 }
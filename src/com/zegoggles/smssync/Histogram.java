@@ -0,0 +1,53 @@
+package com.zegoggles.smssync;
+
+/**
+ * Durations in log2 buckets (1 microsecond to ~35 min), so percentiles come at a fixed,
+ * small memory cost. Percentiles are the upper bound of their bucket, i.e. accurate to
+ * a factor of two. Not thread safe.
+ */
+class Histogram {
+    private static final int BUCKETS = 32;
+
+    private final int[] buckets = new int[BUCKETS];
+    private long total;
+    private int count;
+
+    void record(long nanos) {
+        buckets[bucket(nanos / 1000)]++;
+        total += nanos;
+        count++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /** @return the sum of all durations, in ms */
+    long getTotal() {
+        return total / 1000000;
+    }
+
+    /**
+     * @param percentile 0..100
+     * @return the duration below which percentile % of the recorded durations are, in ms
+     */
+    float getPercentile(int percentile) {
+        final long rank = Math.max(1, ((long) count * percentile + 99) / 100);
+
+        int seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) return (1L << (i + 1)) / 1000f;
+        }
+        return 0;
+    }
+
+    private static int bucket(long micros) {
+        int bucket = 0;
+        while (micros > 1 && bucket < BUCKETS - 1) {
+            micros >>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+}
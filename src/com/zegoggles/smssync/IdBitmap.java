@@ -0,0 +1,187 @@
+package com.zegoggles.smssync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact set of provider ids, stored as sorted runs of consecutive ids (like the run
+ * containers of Roaring bitmaps). Provider ids are handed out sequentially and only get
+ * sparse through deletions, so even several 100k ids usually fit into a few KB.
+ */
+class IdBitmap implements Iterable<Long> {
+    private final long[] starts, ends; // inclusive
+    private final int runs;
+
+    private IdBitmap(long[] starts, long[] ends, int runs) {
+        this.starts = starts;
+        this.ends = ends;
+        this.runs = runs;
+    }
+
+    /** Builds a bitmap from ids added in ascending order. */
+    static class Builder {
+        private long[] starts = new long[16], ends = new long[16];
+        private int runs;
+
+        Builder add(long id) {
+            return add(id, id);
+        }
+
+        /** Adds the ids start..end (inclusive), start must not be below previously added ids */
+        Builder add(long start, long end) {
+            if (runs > 0 && start <= ends[runs - 1] + 1) {
+                if (start < starts[runs - 1]) throw new IllegalArgumentException("ids not sorted: " + start);
+                if (end > ends[runs - 1]) ends[runs - 1] = end;
+                return this;
+            }
+            if (runs == starts.length) {
+                starts = copyOf(starts, runs * 2);
+                ends = copyOf(ends, runs * 2);
+            }
+            starts[runs] = start;
+            ends[runs] = end;
+            runs++;
+            return this;
+        }
+
+        IdBitmap build() {
+            return new IdBitmap(copyOf(starts, runs), copyOf(ends, runs), runs);
+        }
+    }
+
+    static final IdBitmap EMPTY = new Builder().build();
+
+    boolean isEmpty() {
+        return runs == 0;
+    }
+
+    long size() {
+        long size = 0;
+        for (int i = 0; i < runs; i++) size += ends[i] - starts[i] + 1;
+        return size;
+    }
+
+    boolean contains(long id) {
+        int lo = 0, hi = runs - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (id < starts[mid]) {
+                hi = mid - 1;
+            } else if (id > ends[mid]) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the ids in this set which are not in other, computed run by run */
+    IdBitmap andNot(IdBitmap other) {
+        final Builder result = new Builder();
+        int j = 0;
+        for (int i = 0; i < runs; i++) {
+            long start = starts[i];
+            final long end = ends[i];
+
+            while (j < other.runs && other.ends[j] < start) j++;
+            int k = j;
+            while (start <= end && k < other.runs && other.starts[k] <= end) {
+                if (other.starts[k] > start) result.add(start, other.starts[k] - 1);
+                start = Math.max(start, other.ends[k] + 1);
+                k++;
+            }
+            if (start <= end) result.add(start, end);
+        }
+        return result.build();
+    }
+
+    /** @return approximate memory used, in bytes */
+    int getSizeInBytes() {
+        return runs * 16;
+    }
+
+    public Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+            private int run;
+            private long next = runs > 0 ? starts[0] : 0;
+
+            public boolean hasNext() {
+                return run < runs;
+            }
+
+            public Long next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                final long id = next;
+                if (next < ends[run]) {
+                    next++;
+                } else if (++run < runs) {
+                    next = starts[run];
+                }
+                return id;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(runs);
+        for (int i = 0; i < runs; i++) {
+            out.writeLong(starts[i]);
+            out.writeLong(ends[i]);
+        }
+    }
+
+    static IdBitmap readFrom(DataInputStream in) throws IOException {
+        final int runs = in.readInt();
+        if (runs < 0) throw new IOException("invalid run count " + runs);
+
+        final Builder builder = new Builder();
+        for (int i = 0; i < runs; i++) {
+            final long start = in.readLong();
+            builder.add(start, in.readLong());
+        }
+        return builder.build();
+    }
+
+    // Arrays.copyOf needs API level 9
+    private static long[] copyOf(long[] array, int length) {
+        final long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IdBitmap)) return false;
+
+        final IdBitmap other = (IdBitmap) o;
+        if (runs != other.runs) return false;
+        for (int i = 0; i < runs; i++) {
+            if (starts[i] != other.starts[i] || ends[i] != other.ends[i]) return false;
+        }
+        return true;
+    }
+
+    @Override public int hashCode() {
+        int hash = runs;
+        for (int i = 0; i < runs; i++) hash = 31 * hash + (int) (starts[i] ^ ends[i]);
+        return hash;
+    }
+
+    @Override public String toString() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < runs; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(starts[i]);
+            if (ends[i] > starts[i]) sb.append(':').append(ends[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
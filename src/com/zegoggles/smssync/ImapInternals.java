@@ -0,0 +1,228 @@
+package com.zegoggles.smssync;
+
+import android.util.Log;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.ImapStore;
+import com.fsck.k9.mail.store.ImapStore.ImapFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Reflective access to the parts of K9's ImapStore which are not exposed (the
+ * connection of a folder is package private). Needed to talk to the server directly,
+ * e.g. to send APPEND literals without waiting for a continuation.
+ *
+ * If the bundled K9 version does not match, {@link #isAvailable()} returns false and
+ * callers have to stick to the public API.
+ */
+final class ImapInternals {
+    private static Field folderConnection, connectionIn, connectionOut, connectionSocket, responseTag;
+    private static Field storeConnections, peekableIn;
+    private static Method sendCommand, readResponse, hasCapability;
+    private static Method encodeFolderName, combineFlags, ioExceptionHandler;
+    private static boolean available;
+
+    static {
+        try {
+            final Class<?> connection = Class.forName(ImapStore.class.getName() + "$ImapConnection");
+
+            folderConnection = accessible(ImapFolder.class.getDeclaredField("mConnection"));
+            connectionIn     = accessible(connection.getDeclaredField("mIn"));
+            connectionOut    = accessible(connection.getDeclaredField("mOut"));
+            connectionSocket = accessible(connection.getDeclaredField("mSocket"));
+            responseTag      = accessible(ImapResponse.class.getDeclaredField("mTag"));
+            storeConnections = accessible(ImapStore.class.getDeclaredField("mConnections"));
+            peekableIn       = accessible(PeekableInputStream.class.getDeclaredField("mIn"));
+
+            sendCommand      = accessible(connection.getDeclaredMethod("sendCommand", String.class, boolean.class));
+            readResponse     = accessible(connection.getDeclaredMethod("readResponse"));
+            hasCapability    = accessible(connection.getDeclaredMethod("hasCapability", String.class));
+
+            encodeFolderName = accessible(ImapStore.class.getDeclaredMethod("encodeFolderName", String.class));
+            combineFlags     = accessible(ImapFolder.class.getDeclaredMethod("combineFlags", Flag[].class));
+            ioExceptionHandler = accessible(ImapFolder.class.getDeclaredMethod("ioExceptionHandler",
+                                                                               connection, IOException.class));
+            available = true;
+        } catch (Exception e) {
+            Log.w(TAG, "K9 internals not available", e);
+            available = false;
+        }
+    }
+
+    private ImapInternals() {}
+
+    static boolean isAvailable() {
+        return available;
+    }
+
+    /** @return the connection currently used by the folder, or null if closed */
+    static Object getConnection(ImapFolder folder) {
+        return get(folderConnection, folder);
+    }
+
+    static boolean hasCapability(Object connection, String capability) {
+        try {
+            return (Boolean) hasCapability.invoke(connection, capability);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends a tagged command, without waiting for the response.
+     * @return the tag of the command
+     */
+    static String sendCommand(Object connection, String command) throws IOException, MessagingException {
+        return (String) invoke(sendCommand, connection, command, false);
+    }
+
+    static ImapResponse readResponse(Object connection) throws IOException, MessagingException {
+        return (ImapResponse) invoke(readResponse, connection);
+    }
+
+    /**
+     * Closes the socket of a connection, which can be done from any thread. Reads and
+     * writes blocked on it fail right away with an IOException.
+     */
+    static void closeSocket(Object connection) {
+        final Socket socket = (Socket) get(connectionSocket, connection);
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing socket", e);
+            }
+        }
+    }
+
+    static OutputStream getOutputStream(Object connection) {
+        return (OutputStream) get(connectionOut, connection);
+    }
+
+    static void setOutputStream(Object connection, OutputStream out) {
+        set(connectionOut, connection, out);
+    }
+
+    /** @return the stream below the connection's peekable stream, null if not connected */
+    static InputStream getInputStream(Object connection) {
+        final PeekableInputStream in = (PeekableInputStream) get(connectionIn, connection);
+        return in != null ? (InputStream) get(peekableIn, in) : null;
+    }
+
+    /** Replaces the stream below the connection's peekable stream, the parser keeps working. */
+    static void setInputStream(Object connection, InputStream stream) {
+        final PeekableInputStream in = (PeekableInputStream) get(connectionIn, connection);
+        if (in != null) set(peekableIn, in, stream);
+    }
+
+    /** @return the idle connections in the pool of the store */
+    @SuppressWarnings("unchecked")
+    static List<Object> getPooledConnections(ImapStore store) {
+        final List<Object> pool = (List<Object>) get(storeConnections, store);
+        synchronized (pool) {
+            return new ArrayList<Object>(pool);
+        }
+    }
+
+    /** Closes the sockets of the idle connections in the pool of the store and empties it. */
+    @SuppressWarnings("unchecked")
+    static void closePooledConnections(ImapStore store) {
+        final List<Object> pool = (List<Object>) get(storeConnections, store);
+        final List<Object> connections;
+        synchronized (pool) {
+            connections = new ArrayList<Object>(pool);
+            pool.clear();
+        }
+        for (Object connection : connections) closeSocket(connection);
+    }
+
+    /** @return the tag of the response, or null for untagged responses */
+    static String getTag(ImapResponse response) {
+        return (String) get(responseTag, response);
+    }
+
+    static String encodeFolderName(ImapStore store, String name) {
+        try {
+            return (String) invoke(encodeFolderName, store, name);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (MessagingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String combineFlags(ImapFolder folder, Flag[] flags) {
+        try {
+            return (String) invoke(combineFlags, folder, (Object) flags);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (MessagingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Closes the broken connection of the folder (so it doesn't go back into the
+     * pool) and wraps the exception.
+     */
+    static MessagingException ioExceptionHandler(ImapFolder folder, Object connection, IOException e) {
+        try {
+            return (MessagingException) ioExceptionHandler.invoke(folder, connection, e);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args)
+        throws IOException, MessagingException {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof MessagingException) throw (MessagingException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static Object get(Field field, Object target) {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void set(Field field, Object target, Object value) {
+        try {
+            field.set(target, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T extends java.lang.reflect.AccessibleObject> T accessible(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+}
@@ -0,0 +1,265 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Wire level statistics of the IMAP connections of a run: bytes in and out, round trips
+ * and a latency {@link Histogram} per command. The streams of a connection get wrapped
+ * (see {@link #attach}); commands are recognized by their tag when they are written and
+ * timed until their tagged response has been read, i.e. network plus server time. Time
+ * spent between commands is the client's.
+ *
+ * Bytes are counted above K9's compression, use {@link TrafficCounter} for what went over
+ * the wire. Connecting and logging in happens inside K9 before the streams can be wrapped,
+ * it is timed as a whole and recorded as {@link #LOGIN}.
+ */
+class ImapMetrics {
+    static final String LOGIN = "LOGIN";
+
+    private final Map<String, Histogram> commands = new TreeMap<String, Histogram>();
+    private long bytesIn, bytesOut;
+    private int roundTrips;
+
+    /** Records a command which took from start to end (in {@link System#nanoTime()}). */
+    synchronized void record(String command, long start, long end) {
+        Histogram histogram = commands.get(command);
+        if (histogram == null) {
+            histogram = new Histogram();
+            commands.put(command, histogram);
+        }
+        histogram.record(end - start);
+        Tracer.span(command, "imap", start, end);
+    }
+
+    synchronized List<String> summarize(Context context) {
+        final List<String> lines = new ArrayList<String>();
+        lines.add(context.getString(R.string.app_log_imap_wire, roundTrips, bytesOut / 1024, bytesIn / 1024));
+        for (Map.Entry<String, Histogram> e : commands.entrySet()) {
+            lines.add(StageTimer.format(context, e.getKey(), e.getValue()));
+        }
+        return lines;
+    }
+
+    private synchronized void roundTrip(String command, long start) {
+        roundTrips++;
+        record(command, start, System.nanoTime());
+    }
+
+    private synchronized void addBytes(long in, long out) {
+        bytesIn += in;
+        bytesOut += out;
+    }
+
+    /**
+     * Wraps the streams of a connection, unless already done. The streams report to
+     * the current metrics of the store, so connections kept open across runs (see
+     * {@link ImapStoreCache}) are counted for the run using them.
+     */
+    static void attach(BackupImapStore store, Object connection) {
+        final OutputStream out = ImapInternals.getOutputStream(connection);
+        final InputStream in = ImapInternals.getInputStream(connection);
+        if (out == null || in == null || out instanceof MeteredOutputStream) return;
+
+        if (LOCAL_LOGV) Log.v(TAG, "metering connection " + connection);
+        final PendingCommands pending = new PendingCommands();
+        ImapInternals.setOutputStream(connection, new MeteredOutputStream(out, store, pending));
+        ImapInternals.setInputStream(connection, new MeteredInputStream(in, store, pending));
+    }
+
+    /** Commands sent on a connection (tags are only unique per connection) still waiting for a response. */
+    private static class PendingCommands {
+        private final Map<String, String> commands = new HashMap<String, String>();
+        private final Map<String, Long> starts = new HashMap<String, Long>();
+
+        synchronized void sent(String tag, String command) {
+            commands.put(tag, command);
+            starts.put(tag, System.nanoTime());
+        }
+
+        synchronized void completed(String tag, ImapMetrics metrics) {
+            final String command = commands.remove(tag);
+            final Long start = starts.remove(tag);
+            if (command != null && metrics != null) metrics.roundTrip(command, start);
+        }
+    }
+
+    private static class MeteredOutputStream extends FilterOutputStream {
+        private final BackupImapStore store;
+        private final PendingCommands pending;
+        private long unreported;
+        private final LineScanner scanner = new LineScanner() {
+            @Override void onLine(String line) {
+                final ImapMetrics metrics = store.getMetrics();
+                if (metrics != null) metrics.addBytes(0, unreported);
+                unreported = 0;
+
+                // "<tag> <command> ...", "UID <command>" counts as the command
+                final String[] tokens = line.split(" ", 4);
+                if (tokens.length < 2 || !isTag(tokens[0])) return;
+                String command = tokens[1].toUpperCase();
+                if ("UID".equals(command) && tokens.length > 2) command = tokens[2].toUpperCase();
+                pending.sent(tokens[0], command);
+            }
+        };
+
+        MeteredOutputStream(OutputStream out, BackupImapStore store, PendingCommands pending) {
+            super(out);
+            this.store = store;
+            this.pending = pending;
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            // the command has to be pending before the response can arrive
+            unreported += len;
+            scanner.scan(b, off, len);
+            out.write(b, off, len);
+        }
+    }
+
+    private static class MeteredInputStream extends FilterInputStream {
+        private final BackupImapStore store;
+        private final PendingCommands pending;
+        private final byte[] single = new byte[1];
+        private long unreported;
+        private final LineScanner scanner = new LineScanner() {
+            @Override void onLine(String line) {
+                final ImapMetrics metrics = store.getMetrics();
+                if (metrics != null) metrics.addBytes(unreported, 0);
+                unreported = 0;
+
+                // "<tag> OK|NO|BAD ...", untagged and continuation responses don't end a command
+                final int space = line.indexOf(' ');
+                if (space <= 0 || !isTag(line.substring(0, space))) return;
+                pending.completed(line.substring(0, space), metrics);
+            }
+        };
+
+        MeteredInputStream(InputStream in, BackupImapStore store, PendingCommands pending) {
+            super(in);
+            this.store = store;
+            this.pending = pending;
+        }
+
+        @Override public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                single[0] = (byte) b;
+                counted(single, 0, 1);
+            }
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) counted(b, off, n);
+            return n;
+        }
+
+        // bytes are reported line by line, PeekableInputStream reads one byte at a time
+        private void counted(byte[] b, int off, int len) {
+            unreported += len;
+            scanner.scan(b, off, len);
+        }
+    }
+
+    /** K9 uses numeric tags, anything else (e.g. SASL data) is not a command. */
+    private static boolean isTag(String token) {
+        if (token.length() == 0) return false;
+        for (int i = 0; i < token.length(); i++) {
+            if (!Character.isDigit(token.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Splits an IMAP stream into lines, skipping the literals announced at the end of a
+     * line ({42} or {42+}) so message contents are never mistaken for protocol lines.
+     * Only the first {@link #HEAD} characters of a line are kept.
+     */
+    abstract static class LineScanner {
+        private static final int HEAD = 64, TAIL = 24;
+
+        private final char[] head = new char[HEAD];
+        private final char[] tail = new char[TAIL];
+        private int length;
+        private long literal;
+
+        abstract void onLine(String line);
+
+        void scan(byte[] b, int off, int len) {
+            final int end = off + len;
+            while (off < end) {
+                if (literal > 0) {
+                    final int skip = (int) Math.min(literal, end - off);
+                    literal -= skip;
+                    off += skip;
+                    continue;
+                }
+
+                final char c = (char) (b[off++] & 0xff);
+                if (c == '\n') {
+                    endOfLine();
+                } else {
+                    if (length < HEAD) head[length] = c;
+                    tail[length % TAIL] = c;
+                    length++;
+                }
+            }
+        }
+
+        private void endOfLine() {
+            int headLength = Math.min(length, HEAD);
+            if (headLength > 0 && head[headLength - 1] == '\r') headLength--;
+            literal = getLiteralSize();
+            final String line = new String(head, 0, headLength);
+            length = 0;
+            onLine(line);
+        }
+
+        /** @return the size of the literal announced at the end of the current line, 0 if none */
+        private long getLiteralSize() {
+            int i = length - 1;
+            if (is(i, '\r')) i--;
+            if (!is(i, '}')) return 0;
+            i--;
+            if (is(i, '+')) i--;
+
+            long size = 0, factor = 1;
+            boolean digits = false;
+            while (isAvailable(i) && Character.isDigit(tail[i % TAIL])) {
+                size += (tail[i % TAIL] - '0') * factor;
+                factor *= 10;
+                digits = true;
+                i--;
+            }
+            return digits && is(i, '{') ? size : 0;
+        }
+
+        private boolean is(int i, char c) {
+            return isAvailable(i) && tail[i % TAIL] == c;
+        }
+
+        /** @return true if the character at position i of the line is still in the tail */
+        private boolean isAvailable(int i) {
+            return i >= 0 && i > length - TAIL;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Keeps the store of the last run (and with it the authenticated connection sitting in
+ * its pool) around for a while, so back-to-back incremental backups can skip DNS, TCP,
+ * TLS and login. K9 checks pooled connections with a NOOP before handing them out.
+ *
+ * A store which is not taken again within {@link #IDLE_TIMEOUT} gets its connections
+ * closed by a timer, so they don't stay open until the server drops them. Stores hold
+ * on to their context, cached ones have to be created with the application context.
+ */
+class ImapStoreCache {
+    /** Stores idle for longer than this are not reused. */
+    static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    private static BackupImapStore sStore;
+    private static String sKey;
+    private static long sReleasedAt;
+    private static Timer sTimer;
+    private static TimerTask sExpiry;
+
+    /** How long it took to connect, log in and open the first folder the last time. */
+    private static long sSetupTime = -1;
+
+    private ImapStoreCache() {}
+
+    /**
+     * Takes the cached store out of the cache.
+     * @return the store or null if there is none, it has been idle for too long or the
+     *         account settings changed.
+     */
+    static synchronized BackupImapStore take(Context ctx) {
+        final BackupImapStore store = sStore;
+        final boolean usable = store != null &&
+                               getKey(ctx).equals(sKey) &&
+                               System.currentTimeMillis() - sReleasedAt < IDLE_TIMEOUT;
+        if (usable) {
+            remove();
+            return store;
+        } else {
+            if (LOCAL_LOGV && store != null) Log.v(TAG, "not reusing expired store");
+            clear();
+            return null;
+        }
+    }
+
+    /** Caches the store, a store cached before gets closed. */
+    static synchronized void put(Context ctx, BackupImapStore store) {
+        if (sStore != store) clear();
+        sStore = store;
+        sKey = getKey(ctx);
+        sReleasedAt = System.currentTimeMillis();
+
+        if (sExpiry != null) sExpiry.cancel();
+        if (sTimer == null) sTimer = new Timer("ImapStoreCache", true);
+        sExpiry = new TimerTask() {
+            @Override public void run() {
+                expire(this);
+            }
+        };
+        sTimer.schedule(sExpiry, IDLE_TIMEOUT);
+    }
+
+    /** Closes the connections of the cached store and drops it. */
+    static synchronized void clear() {
+        final BackupImapStore store = sStore;
+        remove();
+        if (store != null) store.closeConnections();
+    }
+
+    private static synchronized void expire(TimerTask task) {
+        if (task != sExpiry) return; // the store was taken or replaced meanwhile
+        if (LOCAL_LOGV) Log.v(TAG, "closing idle store");
+        clear();
+    }
+
+    private static void remove() {
+        if (sExpiry != null) {
+            sExpiry.cancel();
+            sExpiry = null;
+        }
+        sStore = null;
+        sKey = null;
+    }
+
+    static synchronized long getSetupTime() {
+        return sSetupTime;
+    }
+
+    static synchronized void setSetupTime(long millis) {
+        sSetupTime = millis;
+    }
+
+    /**
+     * The account settings the store was created with. Includes a digest of the
+     * credentials: a store keeps them to log in again once its connection died, so it
+     * can't be reused after the password or the OAuth token changed.
+     */
+    private static String getKey(Context ctx) {
+        return PrefStore.getAuthMode(ctx) + ":" +
+               PrefStore.getUserEmail(ctx) + "@" +
+               PrefStore.getServerProtocol(ctx) +
+               PrefStore.getServerAddress(ctx) + "#" +
+               getCredentialsDigest(ctx);
+    }
+
+    private static String getCredentialsDigest(Context ctx) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (String s : new String[] { PrefStore.getImapPassword(ctx),
+                                           PrefStore.getOauthToken(ctx),
+                                           PrefStore.getOauthTokenSecret(ctx) }) {
+                if (s != null) digest.update(s.getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            return MessageIds.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
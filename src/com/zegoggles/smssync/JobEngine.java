@@ -0,0 +1,254 @@
+package com.zegoggles.smssync;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.zegoggles.smssync.App.*;
+import static com.zegoggles.smssync.ServiceBase.SmsSyncState;
+
+/**
+ * Runs backups and restores one at a time on a dedicated worker thread, so they never
+ * compete for the server connection or the providers, and don't block (or get blocked by)
+ * other AsyncTasks.
+ *
+ * A request arriving while a job of the same kind is running is queued instead of
+ * dropped; further requests are coalesced into the queued job (see {@link Job#merge}),
+ * since one run covers everything which changed in the meantime. A canceled job never
+ * takes requests, they get queued as a fresh job.
+ */
+class JobEngine {
+    enum Kind { BACKUP, RESTORE }
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "JobEngine");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private static Handler sHandler;
+
+    private static final Map<Kind, Job<?>> sRunning = new EnumMap<Kind, Job<?>>(Kind.class);
+    private static final Map<Kind, Job<?>> sQueued  = new EnumMap<Kind, Job<?>>(Kind.class);
+    private static final Map<Kind, Job<?>> sLast    = new EnumMap<Kind, Job<?>>(Kind.class);
+
+    /**
+     * A unit of work. {@link #execute()} runs on the worker thread, {@link #onProgress} and
+     * {@link #onFinished} on the main thread. Cancellation and progress can be read and
+     * changed from any thread.
+     *
+     * A job can record a trace by calling {@link Tracer#start} on its thread, it gets
+     * written once the job ends.
+     *
+     * Canceling a job interrupts the worker thread (streams check the interrupted flag)
+     * and calls {@link #onCancel()}, which should abort blocking network I/O.
+     */
+    abstract static class Job<Result> {
+        final Kind kind;
+        private final AtomicBoolean canceled = new AtomicBoolean();
+        private final AtomicInteger total = new AtomicInteger();
+        private final AtomicInteger done  = new AtomicInteger();
+        private volatile long bytes, progressStart;
+        private volatile int startId;
+        private volatile long cancelTime, cancelLatency = -1;
+        private Thread thread;
+        private ProgressReporter reporter;
+
+        Job(Kind kind, int startId) {
+            this.kind = kind;
+            this.startId = startId;
+        }
+
+        protected abstract Result execute();
+
+        protected void onProgress(SmsSyncState state) {
+        }
+
+        protected void onFinished(Result result) {
+        }
+
+        /**
+         * Called when a request for the same kind arrives while this job is queued, the job
+         * has to cover what the request asks for as well. Called with the engine locked,
+         * before the job starts.
+         */
+        protected void merge(Job<?> request) {
+        }
+
+        /** Called on a separate thread when a running job gets canceled. */
+        protected void onCancel() {
+        }
+
+        /** @return the id of the latest service start request handled by this job */
+        int getStartId() {
+            return startId;
+        }
+
+        void cancel() {
+            if (canceled.getAndSet(true)) return;
+            cancelTime = SystemClock.elapsedRealtime();
+
+            final boolean running;
+            synchronized (this) {
+                running = thread != null;
+                if (running) thread.interrupt();
+            }
+            if (running) {
+                // closing (SSL) sockets can block, keep it off the calling (main) thread
+                new Thread("cancel " + kind) {
+                    @Override public void run() {
+                        onCancel();
+                    }
+                }.start();
+            }
+        }
+
+        /** @return ms between the cancel request and the end of the job, -1 if not known (yet) */
+        long getCancelLatency() {
+            return cancelLatency;
+        }
+
+        boolean isCanceled() {
+            return canceled.get();
+        }
+
+        int getTotal() {
+            return total.get();
+        }
+
+        int getDone() {
+            return done.get();
+        }
+
+        /** Sets the number of items to transfer, rates are measured from here on. */
+        void setTotal(int items) {
+            total.set(items);
+            done.set(0);
+            bytes = 0;
+            progressStart = SystemClock.elapsedRealtime();
+        }
+
+        int addDone(int items) {
+            return done.addAndGet(items);
+        }
+
+        void setDone(int items) {
+            done.set(items);
+        }
+
+        /** @param transferred bytes transferred since {@link #setTotal(int)} */
+        void setBytes(long transferred) {
+            bytes = transferred;
+        }
+
+        ProgressReporter.Progress getProgress() {
+            final long elapsed = progressStart > 0 ? SystemClock.elapsedRealtime() - progressStart : 0;
+            return new ProgressReporter.Progress(getDone(), getTotal(), bytes, elapsed);
+        }
+
+        /** Can be called once per item, updates are coalesced by the {@link ProgressReporter}. */
+        protected final void publishProgress(SmsSyncState state) {
+            Tracer.phase(state);
+            reporter.publish(state);
+        }
+
+        private void run() {
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            reporter = new ProgressReporter(sHandler, new ProgressReporter.Listener() {
+                public void onProgress(SmsSyncState state) {
+                    Job.this.onProgress(state);
+                }
+            });
+            Result result = null;
+            try {
+                result = execute();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "error in " + kind, e);
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                    // don't leak the interrupt into the next job
+                    Thread.interrupted();
+                }
+                Tracer.finish();
+                if (isCanceled()) cancelLatency = SystemClock.elapsedRealtime() - cancelTime;
+                synchronized (JobEngine.class) {
+                    sRunning.remove(kind);
+                }
+                final Result r = result;
+                post(new Runnable() {
+                    public void run() {
+                        onFinished(r);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Queues a job.
+     * @return false if a job of the same kind was already queued, the request was merged into it
+     */
+    static synchronized boolean submit(final Job<?> job) {
+        final Job<?> queued = sQueued.get(job.kind);
+        if (queued != null && !queued.isCanceled()) {
+            queued.merge(job);
+            queued.startId = job.startId;
+            return false;
+        }
+
+        if (sHandler == null) sHandler = new Handler(Looper.getMainLooper());
+        sQueued.put(job.kind, job);
+        EXECUTOR.execute(new Runnable() {
+            public void run() {
+                synchronized (JobEngine.class) {
+                    // a canceled job may have been replaced by a fresh one in the meantime
+                    if (sQueued.get(job.kind) == job) sQueued.remove(job.kind);
+                    sRunning.put(job.kind, job);
+                    sLast.put(job.kind, job);
+                }
+                if (LOCAL_LOGV) Log.v(TAG, "running " + job.kind + (job.isCanceled() ? " (canceled)" : ""));
+                job.run();
+            }
+        });
+        return true;
+    }
+
+    /** @return true if a job of this kind is running or queued */
+    static synchronized boolean isActive(Kind kind) {
+        return sRunning.containsKey(kind) || sQueued.containsKey(kind);
+    }
+
+    /** @return true if a job of this kind is running right now */
+    static synchronized boolean isRunning(Kind kind) {
+        return sRunning.containsKey(kind);
+    }
+
+    /** Cancels the running and the queued job of this kind. */
+    static synchronized void cancel(Kind kind) {
+        if (sRunning.containsKey(kind)) sRunning.get(kind).cancel();
+        if (sQueued.containsKey(kind))  sQueued.get(kind).cancel();
+    }
+
+    /** @return the running job of this kind or the one which ran last, null if none ran yet */
+    static synchronized Job<?> getLast(Kind kind) {
+        return sLast.get(kind);
+    }
+
+    private static void post(Runnable runnable) {
+        sHandler.post(runnable);
+    }
+}
@@ -0,0 +1,132 @@
+package com.zegoggles.smssync;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Message-IDs of backed up messages, which are also their key for finding duplicates:
+ * <code>&lt;md5(date + address + type)@sms-backup-plus.local&gt;</code>, the same hash as
+ * <code>msg_hash</code> in contrib/dedup.py. They must never change, or messages
+ * backed up before would not be recognized anymore.
+ *
+ * Called for every message: the digest and its input buffer are kept per thread and
+ * reused, and nothing is formatted with patterns or regular expressions.
+ */
+class MessageIds {
+    private static final String DOMAIN = "@sms-backup-plus.local>";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Hasher> HASHER = new ThreadLocal<Hasher>() {
+        @Override protected Hasher initialValue() {
+            return new Hasher();
+        }
+    };
+
+    private MessageIds() {}
+
+    /** @return the Message-ID of a message */
+    static String create(long date, String address, int type) {
+        return new StringBuilder(1 + 32 + DOMAIN.length())
+            .append('<')
+            .append(hash(date, address, type))
+            .append(DOMAIN)
+            .toString();
+    }
+
+    /** @return the hex encoded MD5 of the UTF-8 bytes of date, address and type, as decimal strings */
+    static String hash(long date, String address, int type) {
+        return toHex(HASHER.get().digest(Long.toString(date), address, Integer.toString(type)));
+    }
+
+    /** @return the lowercase hex encoding of the bytes */
+    static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i]     = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Removes control characters, same as <code>s.replaceAll("\\p{Cntrl}", "")</code>
+     * (U+0000 to U+001F and U+007F).
+     * @return s itself if it doesn't contain any, null if it is null
+     */
+    static String stripControlChars(String s) {
+        if (s == null) return null;
+
+        final int length = s.length();
+        int i = 0;
+        while (i < length && !isControl(s.charAt(i))) i++;
+        if (i == length) return s;
+
+        final StringBuilder sb = new StringBuilder(length - 1);
+        sb.append(s, 0, i);
+        for (; i < length; i++) {
+            final char c = s.charAt(i);
+            if (!isControl(c)) sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isControl(char c) {
+        return c < 0x20 || c == 0x7f;
+    }
+
+    /** A digest with a buffer for its input, not thread safe. */
+    private static class Hasher {
+        private final MessageDigest digest;
+        private byte[] buffer = new byte[64];
+        private int length;
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        byte[] digest(String... parts) {
+            length = 0;
+            for (String part : parts) append(part);
+            digest.reset();
+            digest.update(buffer, 0, length);
+            return digest.digest();
+        }
+
+        private void append(String s) {
+            final int n = s.length();
+            ensureCapacity(n);
+            for (int i = 0; i < n; i++) {
+                final char c = s.charAt(i);
+                if (c >= 0x80) {
+                    appendUtf8(s.substring(i));
+                    return;
+                }
+                buffer[length++] = (byte) c;
+            }
+        }
+
+        private void appendUtf8(String s) {
+            try {
+                final byte[] bytes = s.getBytes("UTF-8");
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void ensureCapacity(int n) {
+            if (length + n > buffer.length) {
+                final byte[] grown = new byte[Math.max(buffer.length * 2, length + n)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+    }
+}
@@ -34,6 +34,8 @@ public interface MmsConsts {
 
    String TYPE = "m_type";
 
+   String MESSAGE_SIZE = "m_size";
+
    String DELIVERY_REPORT = "134"; // 0x86
 
    int MESSAGE_BOX_INBOX = 1;
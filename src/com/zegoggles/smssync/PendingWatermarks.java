@@ -0,0 +1,93 @@
+package com.zegoggles.smssync;
+
+import com.fsck.k9.mail.Message;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Moves watermarks as batches get confirmed by the server. Appends are pipelined, so a
+ * batch may still be in flight when the next one is sent: its watermark is only set once
+ * the server confirmed all of its messages, and those of the batches before it. A
+ * checkpoint therefore never persists a watermark past an unconfirmed append.
+ *
+ * A batch has to be added before its messages are sent, without pipelining the server
+ * confirms them while they are being appended.
+ *
+ * @param <L> the lane a watermark belongs to
+ */
+class PendingWatermarks<L> {
+    interface Watermarks<L> {
+        long get(L lane);
+        void set(L lane, long date);
+    }
+
+    private final Watermarks<L> watermarks;
+    private final List<Pending<L>> pending = new LinkedList<Pending<L>>();
+
+    private static class Pending<L> {
+        final L lane;
+        final long date;
+        final List<Message> unconfirmed;
+
+        Pending(L lane, long date, List<Message> unconfirmed) {
+            this.lane = lane;
+            this.date = date;
+            this.unconfirmed = unconfirmed;
+        }
+    }
+
+    PendingWatermarks(Watermarks<L> watermarks) {
+        this.watermarks = watermarks;
+    }
+
+    /**
+     * Adds a batch about to be sent.
+     * @param sending the messages of the batch which will be appended
+     */
+    void add(L lane, long date, List<Message> sending) {
+        pending.add(new Pending<L>(lane, date, new ArrayList<Message>(sending)));
+        setConfirmed();
+    }
+
+    /** @return the date of the lane's last batch, confirmed or not */
+    long getLatest(L lane) {
+        for (ListIterator<Pending<L>> it = pending.listIterator(pending.size()); it.hasPrevious(); ) {
+            final Pending<L> p = it.previous();
+            if (p.lane.equals(lane)) return p.date;
+        }
+        return watermarks.get(lane);
+    }
+
+    /** @return the number of batches waiting for the server */
+    int size() {
+        return pending.size();
+    }
+
+    void onAppended(Message message) {
+        for (Pending<L> p : pending) {
+            if (removeIdentical(p.unconfirmed, message)) break;
+        }
+        setConfirmed();
+    }
+
+    private void setConfirmed() {
+        while (!pending.isEmpty() && pending.get(0).unconfirmed.isEmpty()) {
+            final Pending<L> p = pending.remove(0);
+            watermarks.set(p.lane, p.date);
+        }
+    }
+
+    private static boolean removeIdentical(List<Message> messages, Message message) {
+        for (Iterator<Message> it = messages.iterator(); it.hasNext(); ) {
+            if (it.next() == message) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+}
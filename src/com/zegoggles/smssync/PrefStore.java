@@ -41,6 +41,13 @@ public class PrefStore {
     static final String PREF_MAX_SYNCED_DATE_MMS = "max_synced_date_mms";
     static final String PREF_MAX_SYNCED_DATE_CALLLOG = "max_synced_date_calllog";
 
+    /**
+     * Preference key prefixes (followed by the data type) for the recent lane: items newer
+     * than the split date are backed up up to the recent synced date, ahead of the backlog.
+     */
+    static final String PREF_RECENT_SPLIT_DATE = "recent_split_date_";
+    static final String PREF_RECENT_SYNCED_DATE = "recent_synced_date_";
+
     /** Preference key containing the Google account username. */
     static final String PREF_LOGIN_USER = "login_user";
 
@@ -113,11 +120,31 @@ public class PrefStore {
 
     static final String PREF_CONNECTED  = "connected";
     static final String PREF_WIFI_ONLY  = "wifi_only";
+    static final String PREF_IMAP_KEEPALIVE  = "imap_keepalive";
+    static final String PREF_IMAP_COMPRESSION  = "imap_compression";
+    static final String PREF_MIRROR_DELETIONS  = "mirror_deletions";
+    static final String PREF_DEFER_LARGE_MMS  = "defer_large_mms";
+
+    /** Preference key set while MMS are held back until the device is charging on Wifi */
+    static final String PREF_MMS_DEFERRED = "mms_deferred";
+
+    /** Preference key containing the data types changed since the last backup */
+    static final String PREF_DIRTY_TYPES = "dirty_types";
+
+    /** Preference keys describing the changes waiting for an incoming backup */
+    static final String PREF_INCOMING_BURST_START = "incoming_burst_start";
+    static final String PREF_INCOMING_BURST_CHANGES = "incoming_burst_changes";
 
     static final String PREF_THIRD_PARTY_INTEGRATION  = "third_party_integration";
 
     static final String PREF_APP_LOG = "app_log";
 
+    /** Preference key for logging where the time of a backup or restore goes */
+    static final String PREF_APP_LOG_TIMINGS = "app_log_timings";
+
+    /** Preference key for writing a trace file of each backup and restore */
+    static final String PREF_APP_LOG_TRACE = "app_log_trace";
+
     /** Default value for {@link PrefStore#PREF_MAX_SYNCED_DATE_SMS}. */
     static final long DEFAULT_MAX_SYNCED_DATE = -1;
 
@@ -160,6 +187,14 @@ public class PrefStore {
         return getPrefs(ctx).getBoolean(PREF_APP_LOG, false);
     }
 
+    static boolean isAppLogTimingsEnabled(Context ctx) {
+        return isAppLogEnabled(ctx) && getPrefs(ctx).getBoolean(PREF_APP_LOG_TIMINGS, false);
+    }
+
+    static boolean isTraceEnabled(Context ctx) {
+        return isAppLogEnabled(ctx) && getPrefs(ctx).getBoolean(PREF_APP_LOG_TRACE, false);
+    }
+
     enum AuthMode            { PLAIN, XOAUTH }
     enum CallLogTypes        { EVERYTHING, MISSED, INCOMING, OUTGOING, INCOMING_OUTGOING }
     public enum AddressStyle { NAME, NAME_AND_NUMBER, NUMBER }
@@ -386,6 +421,32 @@ public class PrefStore {
       return (getPrefs(ctx).getBoolean(PREF_WIFI_ONLY, false));
     }
 
+    static boolean isImapKeepAlive(Context ctx) {
+      return (getPrefs(ctx).getBoolean(PREF_IMAP_KEEPALIVE, false));
+    }
+
+    static boolean isImapCompressionEnabled(Context ctx) {
+      return (getPrefs(ctx).getBoolean(PREF_IMAP_COMPRESSION, true));
+    }
+
+    static boolean isMirrorDeletions(Context ctx) {
+      return (getPrefs(ctx).getBoolean(PREF_MIRROR_DELETIONS, false));
+    }
+
+    static boolean isDeferLargeMms(Context ctx) {
+      return (getPrefs(ctx).getBoolean(PREF_DEFER_LARGE_MMS, true));
+    }
+
+    static boolean isMmsDeferred(Context ctx) {
+      return (getPrefs(ctx).getBoolean(PREF_MMS_DEFERRED, false));
+    }
+
+    static void setMmsDeferred(Context ctx, boolean deferred) {
+        getPrefs(ctx).edit()
+          .putBoolean(PREF_MMS_DEFERRED, deferred)
+          .commit();
+    }
+
     static boolean isAllow3rdPartyIntegration(Context ctx) {
       return (getPrefs(ctx).getBoolean(PREF_THIRD_PARTY_INTEGRATION, false));
     }
@@ -465,6 +526,16 @@ public class PrefStore {
           .remove(PREF_MAX_SYNCED_DATE_MMS)
           .remove(PREF_MAX_SYNCED_DATE_CALLLOG)
           .commit();
+        clearRecentLanes(ctx);
+    }
+
+    static void clearRecentLanes(Context ctx) {
+        final SharedPreferences.Editor editor = getPrefs(ctx).edit();
+        for (CursorToMessage.DataType type : CursorToMessage.DataType.values()) {
+          editor.remove(PREF_RECENT_SPLIT_DATE + type)
+                .remove(PREF_RECENT_SYNCED_DATE + type);
+        }
+        editor.commit();
     }
 
     static boolean isNotificationEnabled(Context ctx) {
@@ -0,0 +1,79 @@
+package com.zegoggles.smssync;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import static com.zegoggles.smssync.ServiceBase.SmsSyncState;
+
+/**
+ * Delivers the progress of a job to the main thread. State changes are delivered right
+ * away, repeated updates of the same state (one per item) are coalesced to at most one
+ * every {@link #FRAME_INTERVAL} ms, the last one always gets delivered.
+ */
+class ProgressReporter {
+    static final long FRAME_INTERVAL = 250;
+
+    interface Listener {
+        void onProgress(SmsSyncState state);
+    }
+
+    /** Throughput of a running job */
+    static class Progress {
+        final int done, total;
+        final float itemsPerSecond;
+        final long bytesPerSecond;
+        /** estimated time left in ms, -1 if unknown */
+        final long eta;
+
+        Progress(int done, int total, long bytes, long elapsed) {
+            this.done = done;
+            this.total = total;
+            this.itemsPerSecond = elapsed > 0 ? done * 1000f / elapsed : 0;
+            this.bytesPerSecond = elapsed > 0 ? bytes * 1000 / elapsed : 0;
+            this.eta = done > 0 && total >= done ? (total - done) * elapsed / done : -1;
+        }
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+    private volatile SmsSyncState lastState;
+    private volatile long lastDelivery;
+    private volatile boolean pending;
+
+    ProgressReporter(Handler handler, Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /** Called from the worker thread. */
+    void publish(final SmsSyncState state) {
+        final long now = SystemClock.elapsedRealtime();
+        final boolean repeated = state == lastState;
+        lastState = state;
+
+        if (repeated && now - lastDelivery < FRAME_INTERVAL) {
+            if (!pending) {
+                pending = true;
+                handler.postDelayed(new Runnable() {
+                    public void run() {
+                        pending = false;
+                        // dropped if the state changed in the meantime, that update is on its way
+                        if (lastState == state) deliver(state);
+                    }
+                }, FRAME_INTERVAL - (now - lastDelivery));
+            }
+        } else {
+            lastDelivery = now;
+            handler.post(new Runnable() {
+                public void run() {
+                    deliver(state);
+                }
+            });
+        }
+    }
+
+    private void deliver(SmsSyncState state) {
+        lastDelivery = SystemClock.elapsedRealtime();
+        listener.onProgress(state);
+    }
+}
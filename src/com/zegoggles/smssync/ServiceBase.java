@@ -19,6 +19,7 @@ import android.app.Service;
 import android.content.Context;
 import android.database.Cursor;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.net.ConnectivityManager;
@@ -33,6 +34,7 @@ import android.app.Notification;
 import android.app.PendingIntent;
 
 import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.CursorToMessage.DataType;
 
 
 import static com.zegoggles.smssync.App.*;
@@ -54,7 +56,7 @@ public abstract class ServiceBase extends Service {
         UPDATING_THREADS
     }
 
-    static SmsSyncState sState = SmsSyncState.IDLE;
+    static volatile SmsSyncState sState = SmsSyncState.IDLE;
 
     public static SmsSyncState getState() {
         return sState;
@@ -75,6 +77,10 @@ public abstract class ServiceBase extends Service {
 
     protected AppLog appLog;
 
+    private volatile BackupImapStore imapStore;
+    /** IMAP metrics of the current run, null unless timings are logged or traced */
+    private ImapMetrics imapMetrics;
+
     @Override
     public IBinder onBind(Intent arg0) {
         return null;
@@ -94,12 +100,104 @@ public abstract class ServiceBase extends Service {
         if (appLog != null) appLog.close();
     }
 
+    /**
+     * Returns the store used by the current run. All folders share the store's
+     * connection pool, so the store uri (and XOAUTH signature) is only computed once
+     * and folders opened one after another reuse the same authenticated connection.
+     */
+    protected BackupImapStore getBackupImapStore() throws MessagingException {
+        if (imapStore == null) {
+            // the store may outlive this service in ImapStoreCache
+            imapStore = new BackupImapStore(getApplicationContext());
+            imapStore.setMetrics(imapMetrics);
+        }
+        return imapStore;
+    }
+
+    /**
+     * Finishes the current run. With keepalive enabled the store and its open
+     * connection are handed to {@link ImapStoreCache} for the next run.
+     */
+    protected void releaseBackupImapStore() {
+        appLogImapMetrics();
+        if (imapStore != null && PrefStore.isImapKeepAlive(this)) {
+            ImapStoreCache.put(this, imapStore);
+        } else {
+            ImapStoreCache.clear();
+            if (imapStore != null) imapStore.closeConnections();
+        }
+        imapStore = null;
+    }
+
+    /**
+     * Drops the store and closes its connections without keeping it around, used
+     * after errors when the connection is most likely unusable.
+     */
+    protected void discardBackupImapStore() {
+        appLogImapMetrics();
+        if (imapStore != null) imapStore.closeConnections();
+        imapStore = null;
+    }
+
+    /**
+     * Aborts network I/O of the current run, from any thread. The store gets discarded
+     * by the run once its operation failed.
+     */
+    protected void abortBackupImapStore() {
+        final BackupImapStore store = imapStore;
+        if (store != null) store.abort();
+    }
+
     protected BackupImapStore.BackupFolder getSMSBackupFolder() throws MessagingException {
-        return new BackupImapStore(this).getSMSBackupFolder();
+        return getBackupFolder(false);
     }
 
     protected BackupImapStore.BackupFolder getCallLogBackupFolder() throws MessagingException {
-        return new BackupImapStore(this).getCallLogBackupFolder();
+        return getBackupFolder(true);
+    }
+
+    private BackupImapStore.BackupFolder getBackupFolder(boolean callLog) throws MessagingException {
+        if (imapMetrics == null && (PrefStore.isAppLogTimingsEnabled(this) || PrefStore.isTraceEnabled(this))) {
+            imapMetrics = new ImapMetrics();
+        }
+
+        if (imapStore == null && PrefStore.isImapKeepAlive(this)) {
+            final BackupImapStore cached = ImapStoreCache.take(this);
+            if (cached != null) {
+                final long start = System.currentTimeMillis();
+                try {
+                    imapStore = cached;
+                    cached.setMetrics(imapMetrics);
+                    final BackupImapStore.BackupFolder folder = getBackupFolder(cached, callLog);
+
+                    final long setupTime = ImapStoreCache.getSetupTime();
+                    if (setupTime >= 0) {
+                        appLog(R.string.app_log_imap_connection_reused,
+                               Math.max(0, setupTime - (System.currentTimeMillis() - start)));
+                    }
+                    return folder;
+                } catch (MessagingException e) {
+                    // the pooled connection is gone, start over with a fresh store
+                    Log.w(TAG, "could not reuse store", e);
+                    cached.closeConnections();
+                    imapStore = null;
+                }
+            }
+        }
+
+        if (imapStore == null) {
+            final long start = System.currentTimeMillis();
+            final BackupImapStore.BackupFolder folder = getBackupFolder(getBackupImapStore(), callLog);
+            ImapStoreCache.setSetupTime(System.currentTimeMillis() - start);
+            return folder;
+        } else {
+            return getBackupFolder(imapStore, callLog);
+        }
+    }
+
+    private static BackupImapStore.BackupFolder getBackupFolder(BackupImapStore store, boolean callLog)
+        throws MessagingException {
+        return callLog ? store.getCallLogBackupFolder() : store.getSMSBackupFolder();
     }
 
     /**
@@ -136,23 +234,37 @@ public abstract class ServiceBase extends Service {
         }
     }
 
+    /** @return true if connected to Wifi and the device is plugged in */
+    protected boolean isUnmeteredAndCharging() {
+        final NetworkInfo active = getConnectivityManager().getActiveNetworkInfo();
+        if (active == null || active.getType() != ConnectivityManager.TYPE_WIFI) return false;
+
+        // sticky broadcast, no receiver needed
+        final Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra("plugged" /* BatteryManager.EXTRA_PLUGGED */, 0) != 0;
+    }
+
     protected void releaseLocks() {
         if (sWakeLock != null && sWakeLock.isHeld()) sWakeLock.release();
         if (sWifiLock != null && sWifiLock.isHeld()) sWifiLock.release();
     }
 
-    protected abstract void handleIntent(final Intent intent);
+    /**
+     * Handles a start request. Implementations call {@link #stopSelf(int)} with the start id
+     * once the work is done, so the service keeps running while requests are queued.
+     */
+    protected abstract void handleIntent(final Intent intent, int startId);
 
     // Android api level < 5
     @Override
     public void onStart(final Intent intent, int startId) {
-        handleIntent(intent);
+        handleIntent(intent, startId);
     }
 
     // Android api level >= 5
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
-        handleIntent(intent);
+        handleIntent(intent, startId);
         return START_NOT_STICKY;
     }
 
@@ -194,6 +306,15 @@ public abstract class ServiceBase extends Service {
         }
     }
 
+    protected long getMaxItemDate(DataType type) {
+        switch (type) {
+            case SMS:     return getMaxItemDateSms();
+            case MMS:     return getMaxItemDateMms();
+            case CALLLOG: return getMaxItemDateCallLog();
+            default: throw new IllegalArgumentException("unknown type " + type);
+        }
+    }
+
     protected void updateMaxSyncedDateSms(long maxSyncedDate) {
         PrefStore.setMaxSyncedDateSms(this, maxSyncedDate);
         if (LOCAL_LOGV) {
@@ -215,6 +336,15 @@ public abstract class ServiceBase extends Service {
         }
     }
 
+    protected static Uri getProvider(DataType type) {
+        switch (type) {
+            case SMS:     return SMS_PROVIDER;
+            case MMS:     return MMS_PROVIDER;
+            case CALLLOG: return CALLLOG_PROVIDER;
+            default: throw new IllegalArgumentException("unknown type " + type);
+        }
+    }
+
     protected void notifyUser(int icon, String shortText, String title, String text) {
         Notification n = new Notification(icon, shortText, System.currentTimeMillis());
         n.flags = Notification.FLAG_ONLY_ALERT_ONCE | Notification.FLAG_AUTO_CANCEL;
@@ -232,6 +362,28 @@ public abstract class ServiceBase extends Service {
         if (appLog != null) appLog.append(getString(id, args));
     }
 
+    protected void appLogTraffic(TrafficCounter traffic) {
+        if (traffic.isSupported()) {
+            appLog(R.string.app_log_traffic, traffic.getBytesSent(), traffic.getBytesReceived());
+        }
+    }
+
+    /** Logs and resets the wire metrics of the current run. */
+    private void appLogImapMetrics() {
+        if (imapMetrics == null) return;
+        if (appLog != null) {
+            for (String line : imapMetrics.summarize(this)) appLog.append(line);
+        }
+        if (imapStore != null) imapStore.setMetrics(null);
+        imapMetrics = null;
+    }
+
+    protected void appLogStages(StageTimer stages) {
+        if (appLog != null) {
+            for (String line : stages.summarize(this)) appLog.append(line);
+        }
+    }
+
     protected NotificationManager getNotifier() {
         return (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
     }
@@ -22,18 +22,24 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.text.format.DateFormat;
 import android.util.Log;
-import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.CallLog;
 import android.text.TextUtils;
 
-import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.zegoggles.smssync.CursorToMessage.ConversionResult;
 import com.zegoggles.smssync.CursorToMessage.DataType;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.Date;
@@ -47,25 +53,20 @@ public class SmsBackupService extends ServiceBase {
     /** Changing this value will cause mms/sms messages to thread out of order. */
     private static final int MAX_MSG_PER_REQUEST = 1;
 
-    /** Flag indicating whether this service is already running. */
-    private static boolean sIsRunning = false;
-
-    /** Number of messages that currently need a sync. */
-    private static int sItemsToSync;
-
-    /** Number of messages already synced during this cycle.  */
-    private static int sCurrentSyncedItems;
-
-    /**
-     * Indicates that the user canceled the current backup and that this service
-     * should finish working ASAP.
-     */
-    private static boolean sCanceled;
-
     private boolean isBackground(final Intent intent) {
       return intent.hasExtra(Consts.KEY_NUM_RETRIES);
     }
 
+    /** @return how much a run from this source backs up, higher covers lower */
+    private static int getSourceRank(int source) {
+        switch (source) {
+            case Alarms.INCOMING:           return 0;
+            case Alarms.BROADCAST_INTENT:   return 2;
+            case -1:                        return 3; // manual
+            default:                        return 1;
+        }
+    }
+
     private String getSource(final Intent intent) {
         switch (intent.getIntExtra(Consts.SOURCE, -1)) {
             case Alarms.INCOMING:           return getResources().getString(R.string.source_incoming);
@@ -76,7 +77,7 @@ public class SmsBackupService extends ServiceBase {
         }
     }
 
-    @Override protected void handleIntent(final Intent intent) {
+    @Override protected void handleIntent(final Intent intent, int startId) {
         if (intent == null) return; // NB: should not happen with START_NOT_STICKY
         if (LOCAL_LOGV) Log.v(TAG, "handleIntent("+intent+
                 ", "+(intent.getExtras() == null ?  "null" : intent.getExtras().keySet())+")");
@@ -86,37 +87,123 @@ public class SmsBackupService extends ServiceBase {
         if (isBackground(intent) && !getConnectivityManager().getBackgroundDataSetting()) {
             appLog(R.string.app_log_skip_backup_background_data);
 
-            stopSelf();
-        } else {
-          synchronized(ServiceBase.class) {
-            // Only start a sync if there's no other sync / restore going on at this time.
-            if (!sIsRunning)
-              if (!SmsRestoreService.isWorking()) {
-                sIsRunning = true;
-                new BackupTask().execute(intent);
-              } else {
-                appLog(R.string.app_log_skip_backup_already_running);
-              }
-          }
+            stopSelf(startId);
+        } else if (!JobEngine.submit(new BackupTask(intent, startId))) {
+            // runs after the current backup / restore, which might not have seen all items
+            appLog(R.string.app_log_backup_queued);
+        }
+    }
+
+    /** Deletions are only mirrored without further checks up to this number per type. */
+    static final int MAX_UNCHECKED_DELETIONS = 10;
+
+    /** MMS backlogs larger than this are deferred until the device is charging on Wifi */
+    static final long MMS_DEFER_THRESHOLD = 1024 * 1024;
+
+    /** Size assumed for MMS without a size (sent messages usually have none) */
+    static final long AVERAGE_MMS_SIZE = 100 * 1024;
+
+    /**
+     * Runs stop at the next batch once they took longer or transferred more than this, and
+     * continue in a new run, so a large backlog doesn't keep the service busy (and exposed
+     * to being killed) for a long time.
+     */
+    static final long MAX_RUN_TIME  = 5 * 60 * 1000;
+    static final long MAX_RUN_BYTES = 20 * 1024 * 1024;
+
+    /** Items of one type to back up, either from the backlog or from the recent lane */
+    static class Lane {
+        final DataType type;
+        final boolean recent;
+        final Cursor cursor;
+
+        Lane(DataType type, boolean recent, Cursor cursor) {
+            this.type = type;
+            this.recent = recent;
+            this.cursor = cursor;
         }
     }
 
     /** BackupTask does all the work */
-    class BackupTask extends AsyncTask<Intent, SmsSyncState, Integer>
+    class BackupTask extends JobEngine.Job<Integer>
     {
         private final Context context = SmsBackupService.this;
         private final int maxItemsPerSync = PrefStore.getMaxItemsPerSync(context);
         private final ContactGroup groupToBackup = PrefStore.getBackupContactGroup(context);
-        private boolean background;
+        private final BackupJournal journal = new BackupJournal(context);
+        private final Watermarks watermarks = new Watermarks(context, journal);
+        private final BackupState state = new BackupState(context);
+        private final StageTimer stages = StageTimer.create(context);
+        private volatile Intent intent;
+        private volatile boolean background;
+        /** When the run started, not when it got queued */
+        private long startTime;
+        private boolean budgetExhausted;
+        /** Types whose backlog was cut short by maxItemsPerSync */
+        private final Set<DataType> cappedBacklogs = EnumSet.noneOf(DataType.class);
+        private final PendingWatermarks<Lane> pendingWatermarks = new PendingWatermarks<Lane>(
+            new PendingWatermarks.Watermarks<Lane>() {
+                public long get(Lane lane) {
+                    return getWatermark(lane);
+                }
 
+                public void set(Lane lane, long date) {
+                    setWatermark(lane, date);
+                }
+            });
+        private final BackupImapStore.AppendListener appendedListener = new BackupImapStore.AppendListener() {
+            public void onAppended(BackupImapStore.BackupFolder folder, Message message) {
+                pendingWatermarks.onAppended(message);
+            }
+        };
+
+        BackupTask(Intent intent, int startId) {
+            super(JobEngine.Kind.BACKUP, startId);
+            this.intent = intent;
+            this.background = isBackground(intent);
+        }
+
+        /**
+         * Takes over a request which arrived while queued: the run uses the source doing
+         * the most (a manual or 3rd party run backs up everything, an incoming one only the
+         * changed types), skips messages if any request asked for it, and runs in the
+         * foreground if any request came from the user.
+         */
         @Override
-        protected void onPreExecute () {
+        protected void merge(JobEngine.Job<?> request) {
+            final Intent other = ((BackupTask) request).intent;
+            final Intent merged = new Intent(intent);
+
+            final int source = intent.getIntExtra(Consts.SOURCE, -1);
+            final int otherSource = other.getIntExtra(Consts.SOURCE, -1);
+            if (getSourceRank(otherSource) > getSourceRank(source)) {
+                if (otherSource == -1) {
+                    merged.removeExtra(Consts.SOURCE);
+                } else {
+                    merged.putExtra(Consts.SOURCE, otherSource);
+                }
+            }
+            if (other.getBooleanExtra(Consts.KEY_SKIP_MESSAGES, false)) {
+                merged.putExtra(Consts.KEY_SKIP_MESSAGES, true);
+            }
+            if (!isBackground(other)) {
+                merged.removeExtra(Consts.KEY_NUM_RETRIES);
+            }
+
+            if (LOCAL_LOGV) Log.v(TAG, "merged " + other + " into queued " + intent);
+            intent = merged;
+            background = isBackground(merged);
         }
 
         @Override
-        protected java.lang.Integer doInBackground(Intent... params) {
-            final Intent intent = params[0];
-            this.background = isBackground(intent);
+        protected java.lang.Integer execute() {
+            startTime = SystemClock.elapsedRealtime();
+            Tracer.start(context, "backup");
+            if (isCanceled()) {
+               // canceled while queued
+               stopSelf(getStartId());
+               return null;
+            }
 
             if (intent.getBooleanExtra(Consts.KEY_SKIP_MESSAGES, false)) {
                appLog(R.string.app_log_skip_backup_skip_messages);
@@ -125,25 +212,42 @@ public class SmsBackupService extends ServiceBase {
 
             appLog(R.string.app_log_start_backup, getSource(intent));
 
-            Cursor smsItems = null;
-            Cursor mmsItems = null;
-            Cursor callLogItems = null;
+            final Alarms.Burst burst = Alarms.takeIncomingBurst(context);
+            if (burst.changes > 0 && intent.getIntExtra(Consts.SOURCE, -1) == Alarms.INCOMING) {
+              appLog(R.string.app_log_incoming_latency, burst.changes,
+                     (System.currentTimeMillis() - burst.start) / 1000);
+            }
+
+            // backups triggered by changes only need to look at the changed types
+            final Set<DataType> dirtyTypes = ChangeObserver.takeDirtyTypes(context);
+            final Set<DataType> types = intent.getIntExtra(Consts.SOURCE, -1) == Alarms.INCOMING ?
+                                        dirtyTypes : EnumSet.allOf(DataType.class);
+
+            final List<Lane> lanes = new ArrayList<Lane>();
             final int smsCount, mmsCount, callLogCount;
             try {
+              if (types.isEmpty()) {
+                appLog(R.string.app_log_skip_backup_no_changes);
+                return 0;
+              }
+
               acquireLocks(background);
-              smsItems = getSmsItemsToSync(maxItemsPerSync, groupToBackup);
-              smsCount = smsItems != null ? smsItems.getCount() : 0;
+              if (journal.needsRecovery() && PrefStore.isLoginInformationSet(context)) {
+                  recoverJournal();
+              }
 
-              mmsItems = getMmsItemsToSync(maxItemsPerSync - smsCount, groupToBackup);
-              mmsCount = mmsItems != null ? mmsItems.getCount() : 0;
+              final long queryStart = stages.start();
+              lanes.addAll(getItemsToSync(types));
+              deferMms(lanes);
 
-              callLogItems = getCallLogItemsToSync(maxItemsPerSync - smsCount - mmsCount);
-              callLogCount = callLogItems != null ? callLogItems.getCount() : 0;
+              smsCount = getCount(lanes, DataType.SMS);
+              mmsCount = getCount(lanes, DataType.MMS);
+              callLogCount = getCount(lanes, DataType.CALLLOG);
+              stages.stop(StageTimer.Stage.QUERY, queryStart);
 
-              sCurrentSyncedItems = 0;
-              sItemsToSync = smsCount + mmsCount + callLogCount;
+              setTotal(smsCount + mmsCount + callLogCount);
 
-              if (sItemsToSync > 0) {
+              if (getTotal() > 0) {
                   if (!PrefStore.isLoginInformationSet(context)) {
                      appLog(R.string.app_log_missing_credentials);
 
@@ -153,7 +257,9 @@ public class SmsBackupService extends ServiceBase {
                   }
 
                   appLog(R.string.app_log_backup_messages, smsCount, mmsCount, callLogCount);
-                  return backup(smsItems, mmsItems, callLogItems);
+                  final int backedUp = backup(lanes);
+                  syncChanges(types);
+                  return backedUp;
               } else {
                   appLog(R.string.app_log_skip_backup_no_items);
 
@@ -166,35 +272,46 @@ public class SmsBackupService extends ServiceBase {
                   }
 
                   Log.i(TAG, "Nothing to do.");
+                  syncChanges(types);
                   return 0;
               }
             } catch (AuthenticationFailedException e) {
+              ChangeObserver.markDirty(context, dirtyTypes);
               appLog(R.string.app_log_backup_failed_authentication, translateException(e));
+              discardBackupImapStore();
               publish(AUTH_FAILED);
               return null;
             } catch (MessagingException e) {
+              ChangeObserver.markDirty(context, dirtyTypes);
+              discardBackupImapStore();
+              if (isCanceled()) {
+                // the connection got aborted, the journal takes care of the interrupted batch
+                return getDone();
+              }
               appLog(R.string.app_log_backup_failed_messaging, translateException(e));
               lastError = translateException(e);
               publish(GENERAL_ERROR);
               return null;
             } catch (ConnectivityErrorException e) {
+              ChangeObserver.markDirty(context, dirtyTypes);
               appLog(R.string.app_log_backup_failed_connectivity, translateException(e));
               lastError = translateException(e);
               publish(CONNECTIVITY_ERROR);
               return null;
             } finally {
               releaseLocks();
+              journal.close();
+              state.close();
 
               try {
-                if (smsItems != null) smsItems.close();
-                if (mmsItems != null) mmsItems.close();
-                if (callLogItems != null) callLogItems.close();
+                for (Lane lane : lanes) lane.cursor.close();
               } catch (Exception e) {
                 Log.e(TAG, "error", e);
                 /* ignore */
               }
 
-              final long nextSync = Alarms.scheduleRegularSync(context);
+              final long nextSync = budgetExhausted ? Alarms.scheduleContinuation(context) :
+                                                      Alarms.scheduleRegularSync(context);
               if (nextSync >= 0) {
                 appLog(R.string.app_log_scheduled_next_sync,
                        DateFormat.format("kk:mm", new Date(nextSync)));
@@ -202,81 +319,102 @@ public class SmsBackupService extends ServiceBase {
                 appLog(R.string.app_log_no_next_sync);
               }
 
-              stopSelf();
+              releaseBackupImapStore();
+              stopSelf(getStartId());
            }
         }
 
         @Override
-        protected void onProgressUpdate(SmsSyncState... progress) {
-          if (progress != null && progress.length > 0) {
-            if (smsSync != null) smsSync.statusPref.stateChanged(progress[0]);
-            sState = progress[0];
-          }
+        protected void onProgress(SmsSyncState progress) {
+          if (smsSync != null) smsSync.statusPref.stateChanged(progress);
+          sState = progress;
         }
 
         @Override
-        protected void onPostExecute(Integer result) {
-           if (sCanceled) {
+        protected void onCancel() {
+          abortBackupImapStore();
+        }
+
+        @Override
+        protected void onFinished(Integer result) {
+           if (isCanceled()) {
               appLog(R.string.app_log_backup_canceled, result);
+              if (getCancelLatency() >= 0) appLog(R.string.app_log_cancel_latency, getCancelLatency());
               publish(CANCELED_BACKUP);
            } else if (result != null) {
               appLog(R.string.app_log_backup_finished, result);
               Log.i(TAG, result + " items backed up");
               publish(FINISHED_BACKUP);
            }
-           sIsRunning = false;
-           sCanceled = false;
         }
 
-      private int backup(Cursor smsItems, Cursor mmsItems, Cursor callLogItems)
-        throws MessagingException {
-          Log.i(TAG, String.format("Starting backup (%d messages)", sItemsToSync));
+      private int backup(List<Lane> lanes) throws MessagingException {
+          Log.i(TAG, String.format("Starting backup (%d messages)", getTotal()));
 
           final CursorToMessage converter = new CursorToMessage(context, PrefStore.getUserEmail(context));
+          converter.setStageTimer(stages);
 
+          final TrafficCounter traffic = new TrafficCounter();
           publish(LOGIN);
-          Folder smsmmsfolder  = getSMSBackupFolder();
-          Folder callLogfolder = null;
-          if (PrefStore.isCallLogBackupEnabled(context)) {
-            callLogfolder = getCallLogBackupFolder();
-          }
+          BackupImapStore.BackupFolder smsmmsfolder  = getSMSBackupFolder();
+          BackupImapStore.BackupFolder callLogfolder = null;
+          final boolean callLogBackup = PrefStore.isCallLogBackupEnabled(context);
+          smsmmsfolder.addAppendListener(journal);
+          smsmmsfolder.addAppendListener(state);
+          smsmmsfolder.addAppendListener(appendedListener);
 
           try {
-           Cursor curCursor;
-           DataType dataType;
            publish(CALC);
-           while (!sCanceled && (sCurrentSyncedItems < sItemsToSync)) {
-                if (smsItems != null && smsItems.moveToNext()) {
-                  dataType = DataType.SMS;
-                  curCursor = smsItems;
-                } else if (mmsItems != null && mmsItems.moveToNext()) {
-                  dataType = DataType.MMS;
-                  curCursor = mmsItems;
-                } else if (callLogItems != null && callLogItems.moveToNext()) {
-                  dataType = DataType.CALLLOG;
-                  curCursor = callLogItems;
-                } else break;
-
-                if (LOCAL_LOGV) Log.v(TAG, "backing up: " + dataType);
-                ConversionResult result = converter.cursorToMessages(curCursor, MAX_MSG_PER_REQUEST,
+           while (!isCanceled() && (getDone() < getTotal())) {
+                if (getDone() > 0 && isBudgetExhausted(traffic)) {
+                  budgetExhausted = true;
+                  openLanes(lanes);
+                  break;
+                }
+
+                Lane lane = null;
+                for (Lane l : lanes) {
+                  if (l.cursor.moveToNext()) {
+                    lane = l;
+                    break;
+                  }
+                }
+                if (lane == null) break;
+                final DataType dataType = lane.type;
+                final long batchStart = stages.start();
+                final long batchBytes = traffic.getBytesSent();
+
+                if (LOCAL_LOGV) Log.v(TAG, "backing up: " + dataType + (lane.recent ? " (recent)" : ""));
+                ConversionResult result = converter.cursorToMessages(lane.cursor, MAX_MSG_PER_REQUEST,
                                                                      dataType);
                 List<Message> messages = result.messageList;
                 if (!messages.isEmpty()) {
                   if (LOCAL_LOGV) Log.v(TAG, String.format("sending %d %s message(s) to server.",
                                              messages.size(), dataType));
+                  // the watermark only moves once the server confirmed the batch, see BackupJournal
                   switch (dataType) {
                     case MMS:
-                      updateMaxSyncedDateMms(result.maxDate);
-                      smsmmsfolder.appendMessages(messages.toArray(new Message[messages.size()]));
-                      break;
                     case SMS:
-                      updateMaxSyncedDateSms(result.maxDate);
-                      smsmmsfolder.appendMessages(messages.toArray(new Message[messages.size()]));
+                      append(smsmmsfolder, lane, result.maxDate, messages);
                       break;
                     case CALLLOG:
-                      updateMaxSyncedDateCallLog(result.maxDate);
+                      if (callLogBackup && callLogfolder == null) {
+                        // call log items come last, hand the connection over to the call log folder
+                        if (smsmmsfolder != null) {
+                          smsmmsfolder.flushAppends();
+                          smsmmsfolder.close();
+                          watermarks.checkpoint();
+                          smsmmsfolder = null;
+                        }
+                        callLogfolder = getCallLogBackupFolder();
+                        callLogfolder.addAppendListener(journal);
+                        callLogfolder.addAppendListener(state);
+                        callLogfolder.addAppendListener(appendedListener);
+                      }
                       if (callLogfolder != null) {
-                        callLogfolder.appendMessages(messages.toArray(new Message[messages.size()]));
+                        append(callLogfolder, lane, result.maxDate, messages);
+                      } else {
+                        pendingWatermarks.add(lane, result.maxDate, Collections.<Message>emptyList());
                       }
                       if (PrefStore.isCallLogCalendarSyncEnabled(context)) {
                         syncCalendar(converter, result);
@@ -285,15 +423,326 @@ public class SmsBackupService extends ServiceBase {
                   }
                 }
 
-                sCurrentSyncedItems += messages.size();
+                addDone(messages.size());
+                if (traffic.isSupported()) setBytes(traffic.getBytesSent());
+                if (stages.isEnabled()) {
+                  stages.count(dataType, messages.size(), traffic.getBytesSent() - batchBytes,
+                               System.nanoTime() - batchStart);
+                }
                 publish(BACKUP);
             }
 
-            return sCurrentSyncedItems;
+            // wait for the server to confirm pipelined appends
+            if (smsmmsfolder != null)  smsmmsfolder.flushAppends();
+            if (callLogfolder != null) callLogfolder.flushAppends();
+            if (!budgetExhausted && !isCanceled()) openLanes(lanes);
+            watermarks.checkpoint();
+            journal.clear();
+            return getDone();
 
           } finally {
               if (smsmmsfolder != null)  smsmmsfolder.close();
               if (callLogfolder != null) callLogfolder.close();
+              // keep progress made so far when canceled or failed
+              watermarks.checkpoint();
+              state.flush();
+              appLogTraffic(traffic);
+              appLogStages(stages);
+          }
+      }
+
+      private long getWatermark(Lane lane) {
+          return lane.recent ? watermarks.getRecent(lane.type) : watermarks.get(lane.type);
+      }
+
+      private void setWatermark(Lane lane, long date) {
+          final long start = stages.start();
+          if (lane.recent) {
+              watermarks.setRecent(lane.type, date);
+          } else {
+              watermarks.set(lane.type, date);
+          }
+          stages.stop(StageTimer.Stage.PREFS, start);
+      }
+
+      /**
+       * Called when a run stops with items left, because its budget ran out or
+       * maxItemsPerSync cut the backlog short: items arriving from now on get backed up
+       * by the next runs before the rest of the backlog.
+       */
+      private void openLanes(List<Lane> lanes) {
+          final Set<DataType> left = EnumSet.noneOf(DataType.class);
+          left.addAll(cappedBacklogs);
+          for (Lane lane : lanes) {
+              if (!lane.recent && lane.cursor.getPosition() < lane.cursor.getCount() - 1) {
+                  left.add(lane.type);
+              }
+          }
+          for (DataType type : left) {
+              if (!watermarks.isLaneOpen(type)) watermarks.openLane(type, getMaxItemDate(type));
+          }
+      }
+
+      private boolean isBudgetExhausted(TrafficCounter traffic) {
+          final long elapsed = SystemClock.elapsedRealtime() - startTime;
+          final long bytes = traffic.isSupported() ? traffic.getBytesSent() + traffic.getBytesReceived() : 0;
+
+          if (elapsed > MAX_RUN_TIME || bytes > MAX_RUN_BYTES) {
+              appLog(R.string.app_log_backup_budget_exhausted, getDone(), getTotal(),
+                     elapsed / 1000, bytes / 1024);
+              return true;
+          } else {
+              return false;
+          }
+      }
+
+      /**
+       * Sends a batch, messages uploaded before are skipped. The lane's watermark moves
+       * once the server confirmed it, see {@link PendingWatermarks}.
+       */
+      private void append(BackupImapStore.BackupFolder folder, Lane lane, long maxDate,
+                          List<Message> messages) throws MessagingException {
+          final long start = stages.start();
+          final List<Message> upload = journal.beginBatch(lane.type, lane.recent,
+                                                          pendingWatermarks.getLatest(lane),
+                                                          maxDate, messages);
+          // without pipelining the server confirms messages while they are appended
+          pendingWatermarks.add(lane, maxDate, upload);
+          final long appendStart = stages.stop(StageTimer.Stage.PREFS, start);
+          if (!upload.isEmpty()) {
+            folder.appendMessages(upload.toArray(new Message[upload.size()]));
+            stages.stop(StageTimer.Stage.APPEND, appendStart);
+          }
+      }
+
+      /**
+       * Reconciles the batches of an interrupted run with the server. The watermarks are
+       * moved to the end of the last batch which completely made it to the server, messages
+       * which were uploaded past that point are remembered so they don't get uploaded twice.
+       */
+      private void recoverJournal() throws MessagingException {
+          final List<BackupJournal.Batch> batches;
+          final Set<String> uploaded;
+          try {
+            batches = journal.getBatches();
+            uploaded = journal.getAppended();
+          } catch (IOException e) {
+            Log.w(TAG, "error reading journal", e);
+            journal.clear();
+            return;
+          }
+
+          int confirmed = 0, missing = 0;
+          boolean gap = false;
+          BackupImapStore.BackupFolder folder = null;
+          try {
+            for (DataType type : new DataType[] { DataType.SMS, DataType.MMS, DataType.CALLLOG }) {
+              if (type == DataType.CALLLOG && folder != null) {
+                folder.close();
+                folder = null;
+              }
+
+              for (boolean recent : new boolean[] { false, true }) {
+                long watermark = PrefStore.DEFAULT_MAX_SYNCED_DATE;
+                boolean typeGap = false, found = false;
+                for (BackupJournal.Batch batch : batches) {
+                  if (batch.type != type || batch.recent != recent) continue;
+                  if (folder == null) {
+                    folder = type != DataType.CALLLOG ? getSMSBackupFolder() :
+                             PrefStore.isCallLogBackupEnabled(context) ? getCallLogBackupFolder() : null;
+                  }
+
+                  boolean complete = true;
+                  for (String messageId : batch.messageIds) {
+                    if (uploaded.contains(messageId) ||
+                        (folder != null && folder.containsMessageId(messageId))) {
+                      uploaded.add(messageId);
+                      confirmed++;
+                    } else {
+                      complete = false;
+                      missing++;
+                    }
+                  }
+
+                  if (!found) watermark = batch.prevDate;
+                  if (!typeGap) {
+                    if (complete) {
+                      watermark = batch.maxDate;
+                    } else {
+                      typeGap = true;
+                    }
+                  }
+                  found = true;
+                }
+
+                if (found) {
+                  if (LOCAL_LOGV) Log.v(TAG, "recovered watermark for " + type + ": " + watermark);
+                  if (!recent) {
+                    watermarks.set(type, watermark);
+                  } else if (watermarks.isLaneOpen(type)) {
+                    watermarks.setRecent(type, watermark);
+                  }
+                  gap |= typeGap;
+                }
+              }
+            }
+          } finally {
+            if (folder != null) folder.close();
+          }
+          watermarks.checkpoint();
+
+          appLog(R.string.app_log_journal_recovered, confirmed, missing);
+          try {
+            journal.reset(gap ? uploaded : Collections.<String>emptySet());
+          } catch (IOException e) {
+            Log.w(TAG, "error writing journal", e);
+          }
+      }
+
+      /**
+       * Finds items which were changed or deleted on the phone after they got backed up
+       * and updates the server accordingly. Each type takes a pass over its provider, so
+       * this only looks at the types of the run, and not at all while a backlog is being
+       * drained by continuations or if there is nothing to sync.
+       */
+      private void syncChanges(Set<DataType> types) {
+          if (isCanceled() || budgetExhausted) return;
+
+          // with "mark as read" everything on the server is \Seen already
+          final boolean syncRead = !PrefStore.getMarkAsRead(context);
+          final boolean mirrorDeletions = PrefStore.isMirrorDeletions(context);
+          if (!syncRead && !mirrorDeletions) return;
+          if (state.isEmpty()) return;
+
+          final List<BackupState.Diff> diffs = new ArrayList<BackupState.Diff>();
+          int changed = 0, deleted = 0;
+          for (DataType type : types) {
+            // only messages have a read status
+            if (type == DataType.CALLLOG && !mirrorDeletions) continue;
+
+            final BackupState.Diff diff = getChanges(type);
+            if (diff == null) continue;
+            if (LOCAL_LOGV && !diff.isEmpty()) {
+              Log.v(TAG, type + " changed: " + diff.changed + ", deleted: " + diff.deleted);
+            }
+            diffs.add(diff);
+            changed += diff.changed.size();
+            deleted += diff.deleted.size();
+          }
+          if (changed > 0 || deleted > 0) appLog(R.string.app_log_backup_changes, changed, deleted);
+
+          try {
+            if (PrefStore.isLoginInformationSet(context)) {
+              if (changed > 0 && syncRead) syncReadStatus(diffs);
+              if (deleted > 0 && mirrorDeletions) syncDeletions(diffs);
+            }
+            for (BackupState.Diff diff : diffs) state.commit(diff);
+          } catch (MessagingException e) {
+            appLog(R.string.app_log_sync_changes_failed, translateException(e));
+            discardBackupImapStore();
+          }
+      }
+
+      /**
+       * Mirrors read status changes of SMS and MMS as \Seen flags on the server, using a
+       * couple of range-compressed UID STORE commands.
+       */
+      private void syncReadStatus(List<BackupState.Diff> diffs) throws MessagingException {
+          final List<String> seen = new ArrayList<String>();
+          final List<String> unseen = new ArrayList<String>();
+
+          BackupImapStore.BackupFolder folder = null;
+          try {
+            for (BackupState.Diff diff : diffs) {
+              if (diff.type == DataType.CALLLOG) continue;
+
+              for (ListIterator<BackupState.Item> it = diff.changed.listIterator(); it.hasNext(); ) {
+                BackupState.Item item = it.next();
+                if (folder == null) folder = getSMSBackupFolder();
+                final String uid = getUid(folder, item);
+                if (uid == null) continue;
+
+                // committed with the item, so the lookup isn't repeated
+                it.set(item.withUid(uid, folder));
+                (item.isRead() ? seen : unseen).add(uid);
+              }
+            }
+            if (seen.isEmpty() && unseen.isEmpty()) return;
+
+            folder.setFlags(seen, Flag.SEEN, true);
+            folder.setFlags(unseen, Flag.SEEN, false);
+            if (LOCAL_LOGV) Log.v(TAG, "marked " + seen.size() + " read, " + unseen.size() + " unread");
+          } finally {
+            if (folder != null) folder.close();
+          }
+      }
+
+      /**
+       * Removes messages deleted on the phone from the server. If a large part of the
+       * backed up items disappeared at once (provider wiped, phone reset) nothing gets
+       * deleted.
+       */
+      private void syncDeletions(List<BackupState.Diff> diffs) throws MessagingException {
+          final List<BackupState.Item> messages = new ArrayList<BackupState.Item>();
+          final List<BackupState.Item> calls = new ArrayList<BackupState.Item>();
+
+          for (BackupState.Diff diff : diffs) {
+            final int deleted = diff.deleted.size();
+            if (deleted == 0) continue;
+
+            if (deleted > MAX_UNCHECKED_DELETIONS && deleted * 2 > diff.recorded) {
+              appLog(R.string.app_log_deletions_skipped, deleted, diff.type);
+              continue;
+            }
+            (diff.type == DataType.CALLLOG ? calls : messages).addAll(diff.deleted);
+          }
+
+          if (!messages.isEmpty()) deleteMessages(getSMSBackupFolder(), messages);
+          if (!calls.isEmpty()) deleteMessages(getCallLogBackupFolder(), calls);
+      }
+
+      private void deleteMessages(BackupImapStore.BackupFolder folder, List<BackupState.Item> items)
+        throws MessagingException {
+          try {
+            final List<String> uids = new ArrayList<String>(items.size());
+            for (BackupState.Item item : items) {
+              final String uid = getUid(folder, item);
+              if (uid != null) uids.add(uid);
+            }
+            folder.deleteMessages(uids);
+            if (LOCAL_LOGV) Log.v(TAG, "deleted " + uids.size() + " message(s) from " + folder.getName());
+          } finally {
+            folder.close();
+          }
+      }
+
+      /**
+       * @return the UID of the item in the folder, the recorded one if it was assigned in the
+       *         same folder with the same UIDVALIDITY, otherwise looked up by Message-ID.
+       *         Null if the message can't be found.
+       */
+      private String getUid(BackupImapStore.BackupFolder folder, BackupState.Item item)
+        throws MessagingException {
+          if (item.uid != null && folder.isUidValid(item.folder, item.uidValidity)) {
+              return item.uid;
+          } else {
+              return item.messageId != null ? folder.getUid(item.messageId) : null;
+          }
+      }
+
+      /** @return the changes of the given type, or null if the provider is not available */
+      private BackupState.Diff getChanges(DataType type) {
+          final String[] columns = BackupState.getColumns(type);
+          final String[] projection = new String[columns.length + 1];
+          projection[0] = "_id";
+          System.arraycopy(columns, 0, projection, 1, columns.length);
+
+          final Cursor items = getContentResolver().query(getProvider(type), projection, null, null, "_id");
+          if (items == null) return null;
+          try {
+            return state.diff(type, items);
+          } finally {
+            items.close();
           }
       }
 
@@ -332,23 +781,134 @@ public class SmsBackupService extends ServiceBase {
         }
       }
 
-      private Cursor getSmsItemsToSync(int max, ContactGroup group) {
+      /**
+       * Queries the items to back up, in the order they get uploaded: recent SMS and MMS,
+       * older SMS and MMS, then the call log (which goes to a different folder).
+       */
+      private List<Lane> getItemsToSync(Set<DataType> types) {
+          for (DataType type : types) {
+              if (watermarks.isLaneOpen(type) && !hasBacklog(type)) watermarks.closeLane(type);
+          }
+
+          final List<Lane> lanes = new ArrayList<Lane>();
+          int count = 0;
+          for (DataType[] group : new DataType[][] { { DataType.SMS, DataType.MMS }, { DataType.CALLLOG } }) {
+              for (boolean recent : new boolean[] { true, false }) {
+                  for (DataType type : group) {
+                      if (!types.contains(type) || (recent && !watermarks.isLaneOpen(type))) continue;
+                      if (maxItemsPerSync > 0 && count >= maxItemsPerSync) {
+                          // a lane opened for nothing gets closed by the next run
+                          if (!recent) cappedBacklogs.add(type);
+                          continue;
+                      }
+
+                      final int max = maxItemsPerSync > 0 ? maxItemsPerSync - count : -1;
+                      final Cursor cursor = getItemsToSync(type, max,
+                          recent ? watermarks.getRecent(type) : watermarks.get(type),
+                          !recent && watermarks.isLaneOpen(type) ? watermarks.getSplit(type) : Long.MAX_VALUE);
+
+                      if (cursor != null) {
+                          lanes.add(new Lane(type, recent, cursor));
+                          count += cursor.getCount();
+                          if (!recent && max > 0 && cursor.getCount() >= max) cappedBacklogs.add(type);
+                      }
+                  }
+              }
+          }
+          return lanes;
+      }
+
+      /** @return true if there are items older than the recent lane left to back up */
+      private boolean hasBacklog(DataType type) {
+          final Cursor cursor = getItemsToSync(type, 1, watermarks.get(type), watermarks.getSplit(type));
+          try {
+              return cursor == null || cursor.getCount() > 0;
+          } finally {
+              if (cursor != null) cursor.close();
+          }
+      }
+
+      /** @return items with after &lt; date &lt;= until, at most max items (if max &gt; 0) */
+      private Cursor getItemsToSync(DataType type, int max, long after, long until) {
+          switch (type) {
+              case SMS:     return getSmsItemsToSync(max, groupToBackup, after, until);
+              case MMS:     return getMmsItemsToSync(max, groupToBackup, after, until);
+              case CALLLOG: return getCallLogItemsToSync(max, after, until);
+              default: throw new IllegalArgumentException("unknown type " + type);
+          }
+      }
+
+      private int getCount(List<Lane> lanes, DataType type) {
+          int count = 0;
+          for (Lane lane : lanes) {
+              if (lane.type == type) count += lane.cursor.getCount();
+          }
+          return count;
+      }
+
+      private Cursor getSmsItemsToSync(int max, ContactGroup group, long after, long until) {
          if (LOCAL_LOGV) {
-            Log.v(TAG, String.format("getSmsItemToSync(max=%d),  maxSyncedDate=%d", max,
-                       PrefStore.getMaxSyncedDateSms(context)));
+            Log.v(TAG, String.format("getSmsItemToSync(max=%d), after=%d, until=%d", max, after, until));
          }
          String sortOrder = SmsConsts.DATE;
          if (max > 0) sortOrder += " LIMIT " + max;
 
          return getContentResolver().query(SMS_PROVIDER, null,
-                String.format("%s > ? AND %s <> ? %s", SmsConsts.DATE, SmsConsts.TYPE,
+                String.format("%s > ? AND %s <= ? AND %s <> ? %s", SmsConsts.DATE, SmsConsts.DATE,
+                                                       SmsConsts.TYPE,
                                                        groupSelection(DataType.SMS, group)),
-                new String[] { String.valueOf(PrefStore.getMaxSyncedDateSms(context)),
+                new String[] { String.valueOf(after),
+                               String.valueOf(until),
                                String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT) },
                 sortOrder);
       }
 
-      private Cursor getMmsItemsToSync(int max, ContactGroup group) {
+      /**
+       * Holds back large MMS backlogs in background runs unless the device is charging on
+       * Wifi. SMS and call log entries are small and still get backed up right away.
+       */
+      private void deferMms(List<Lane> lanes) {
+          final int count = getCount(lanes, DataType.MMS);
+          boolean defer = false;
+          if (background && count > 0 &&
+              PrefStore.isDeferLargeMms(context) && !isUnmeteredAndCharging()) {
+
+              long size = 0;
+              for (Lane lane : lanes) {
+                  if (lane.type == DataType.MMS) size += getEstimatedSize(lane.cursor);
+              }
+              if (size > MMS_DEFER_THRESHOLD) {
+                  appLog(R.string.app_log_mms_deferred, count, size / 1024);
+                  defer = true;
+              }
+          }
+          if (defer != PrefStore.isMmsDeferred(context)) {
+              PrefStore.setMmsDeferred(context, defer);
+          }
+
+          if (defer) {
+              for (Iterator<Lane> i = lanes.iterator(); i.hasNext(); ) {
+                  final Lane lane = i.next();
+                  if (lane.type == DataType.MMS) {
+                      lane.cursor.close();
+                      i.remove();
+                  }
+              }
+          }
+      }
+
+      private long getEstimatedSize(Cursor mmsItems) {
+          final int sizeIndex = mmsItems.getColumnIndex(MmsConsts.MESSAGE_SIZE);
+          long size = 0;
+          while (mmsItems.moveToNext()) {
+              final long messageSize = sizeIndex >= 0 ? mmsItems.getLong(sizeIndex) : 0;
+              size += messageSize > 0 ? messageSize : AVERAGE_MMS_SIZE;
+          }
+          mmsItems.moveToPosition(-1);
+          return size;
+      }
+
+      private Cursor getMmsItemsToSync(int max, ContactGroup group, long after, long until) {
           if (LOCAL_LOGV) Log.v(TAG, "getMmsItemsToSync(max=" + max+")");
 
           if (!PrefStore.isMmsBackupEnabled(context)) {
@@ -360,14 +920,16 @@ public class SmsBackupService extends ServiceBase {
           if (max > 0) sortOrder += " LIMIT " + max;
 
           return getContentResolver().query(MMS_PROVIDER, null,
-                String.format("%s > ? AND %s <> ? %s", SmsConsts.DATE, MmsConsts.TYPE,
+                String.format("%s > ? AND %s <= ? AND %s <> ? %s", SmsConsts.DATE, SmsConsts.DATE,
+                                                       MmsConsts.TYPE,
                                                        groupSelection(DataType.MMS, group)),
-                new String[] { String.valueOf(PrefStore.getMaxSyncedDateMms(context)),
+                new String[] { String.valueOf(after),
+                               String.valueOf(until),
                                MmsConsts.DELIVERY_REPORT },
                 sortOrder);
       }
 
-      private Cursor getCallLogItemsToSync(int max) {
+      private Cursor getCallLogItemsToSync(int max, long after, long until) {
           if (LOCAL_LOGV) Log.v(TAG, "getCallLogItemsToSync(max=" + max+")");
 
           if (!PrefStore.isCallLogBackupEnabled(context)) {
@@ -378,8 +940,8 @@ public class SmsBackupService extends ServiceBase {
           if (max > 0) sortOrder += " LIMIT " + max;
 
           return getContentResolver().query(CALLLOG_PROVIDER, null,
-                String.format("%s > ?", CallLog.Calls.DATE),
-                new String[] { String.valueOf(PrefStore.getMaxSyncedDateCallLog(context)) },
+                String.format("%s > ? AND %s <= ?", CallLog.Calls.DATE, CallLog.Calls.DATE),
+                new String[] { String.valueOf(after), String.valueOf(until) },
                 sortOrder);
       }
 
@@ -401,6 +963,7 @@ public class SmsBackupService extends ServiceBase {
         if (!background) {
            publishProgress(s);
         } else {
+           Tracer.phase(s);
            if (!PrefStore.isNotificationEnabled(context)) return;
 
            switch(s) {
@@ -425,10 +988,12 @@ public class SmsBackupService extends ServiceBase {
           updateMaxSyncedDateSms(getMaxItemDateSms());
           updateMaxSyncedDateMms(getMaxItemDateMms());
           updateMaxSyncedDateCallLog(getMaxItemDateCallLog());
+          PrefStore.clearRecentLanes(context);
+          journal.clear();
 
-          sItemsToSync = sCurrentSyncedItems = 0;
-          sIsRunning = false;
+          setTotal(0);
           publish(IDLE);
+          stopSelf(getStartId());
           Log.i(TAG, "All messages skipped.");
           return 0;
       }
@@ -438,20 +1003,25 @@ public class SmsBackupService extends ServiceBase {
      * Cancels the current ongoing backup.
      */
     static void cancel() {
-        if (sIsRunning) {
-          sCanceled = true;
-        }
+        JobEngine.cancel(JobEngine.Kind.BACKUP);
     }
 
     static boolean isWorking() {
-        return sIsRunning;
+        return JobEngine.isActive(JobEngine.Kind.BACKUP);
     }
 
     static int getItemsToSyncCount() {
-        return sItemsToSync;
+        final JobEngine.Job<?> job = JobEngine.getLast(JobEngine.Kind.BACKUP);
+        return job != null ? job.getTotal() : 0;
     }
 
     static int getCurrentSyncedItems() {
-        return sCurrentSyncedItems;
+        final JobEngine.Job<?> job = JobEngine.getLast(JobEngine.Kind.BACKUP);
+        return job != null ? job.getDone() : 0;
+    }
+
+    static ProgressReporter.Progress getProgress() {
+        final JobEngine.Job<?> job = JobEngine.getLast(JobEngine.Kind.BACKUP);
+        return job != null ? job.getProgress() : null;
     }
 }
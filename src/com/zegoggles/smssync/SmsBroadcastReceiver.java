@@ -20,10 +20,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import java.util.EnumSet;
+
 import static com.zegoggles.smssync.App.*;
+import static com.zegoggles.smssync.CursorToMessage.DataType;
 
 public class SmsBroadcastReceiver extends BroadcastReceiver {
     public static final String SMS_RECEIVED = "android.provider.Telephony.SMS_RECEIVED";
+    // Intent.ACTION_POWER_CONNECTED, API level 4
+    public static final String ACTION_POWER_CONNECTED = "android.intent.action.ACTION_POWER_CONNECTED";
 
     @Override
     public void onReceive(Context ctx, Intent intent) {
@@ -33,15 +38,32 @@ public class SmsBroadcastReceiver extends BroadcastReceiver {
           bootup(ctx);
         } else if (intent.getAction().equals(SMS_RECEIVED)) {
           incomingSMS(ctx);
+        } else if (intent.getAction().equals(ACTION_POWER_CONNECTED)) {
+          powerConnected(ctx);
         }
     }
 
     private void bootup(Context ctx) {
         Log.d(TAG, "bootup");
-        incomingSMS(ctx);
+        // no idea what happened while the app was not running
+        ChangeObserver.markDirty(ctx, EnumSet.allOf(DataType.class));
+        scheduleIncomingSync(ctx);
     }
 
     private void incomingSMS(Context ctx) {
+        ChangeObserver.markDirty(ctx, EnumSet.of(DataType.SMS));
+        scheduleIncomingSync(ctx);
+    }
+
+    private void powerConnected(Context ctx) {
+        // a good time to back up deferred MMS, if there is Wifi
+        if (PrefStore.isMmsDeferred(ctx)) {
+          ChangeObserver.markDirty(ctx, EnumSet.of(DataType.MMS));
+          scheduleIncomingSync(ctx);
+        }
+    }
+
+    private void scheduleIncomingSync(Context ctx) {
         if (PrefStore.isEnableAutoSync(ctx) &&
             PrefStore.isLoginInformationSet(ctx) &&
             !PrefStore.isFirstSync(ctx)) {
@@ -1,10 +1,10 @@
 package com.zegoggles.smssync;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.content.Context;
 import android.util.Log;
 import android.provider.CallLog;
@@ -23,77 +23,89 @@ import static com.zegoggles.smssync.ServiceBase.SmsSyncState.*;
 import static com.zegoggles.smssync.App.*;
 
 public class SmsRestoreService extends ServiceBase {
-    private static int sCurrentRestoredItems;
-    private static int sItemsToRestoreCount;
-
     static int sRestoredCount, sDuplicateCount;
 
-    private static boolean sIsRunning = false;
-    private static boolean sCanceled = false;
-
     public static void cancel() {
-        sCanceled = true;
+        JobEngine.cancel(JobEngine.Kind.RESTORE);
     }
 
     public static boolean isWorking() {
-        return sIsRunning;
+        return JobEngine.isActive(JobEngine.Kind.RESTORE);
     }
 
     public static int getCurrentRestoredItems() {
-        return sCurrentRestoredItems;
+        final JobEngine.Job<?> job = JobEngine.getLast(JobEngine.Kind.RESTORE);
+        return job != null ? job.getDone() : 0;
     }
 
     public static int getItemsToRestoreCount() {
-        return sItemsToRestoreCount;
+        final JobEngine.Job<?> job = JobEngine.getLast(JobEngine.Kind.RESTORE);
+        return job != null ? job.getTotal() : 0;
     }
 
-    class RestoreTask extends AsyncTask<Integer, SmsSyncState, Integer> {
+    static ProgressReporter.Progress getProgress() {
+        final JobEngine.Job<?> job = JobEngine.getLast(JobEngine.Kind.RESTORE);
+        return job != null ? job.getProgress() : null;
+    }
+
+    class RestoreTask extends JobEngine.Job<Integer> {
         private Set<String> smsIds     = new HashSet<String>();
         private Set<String> callLogIds = new HashSet<String>();
         private Set<String> uids       = new HashSet<String>();
         private BackupImapStore.BackupFolder smsFolder, callFolder;
         private final Context context = SmsRestoreService.this;
         private CursorToMessage converter = new CursorToMessage(context, PrefStore.getUserEmail(context));
-        private int max;
+        private final BackupState state = new BackupState(context);
+        private final StageTimer stages = StageTimer.create(context);
+        private final int max;
+
+        RestoreTask(int max, int startId) {
+            super(JobEngine.Kind.RESTORE, startId);
+            this.max = max;
+        }
 
-        protected java.lang.Integer doInBackground(Integer... params) {
-            this.max = params.length > 0 ? params[0] : -1;
+        protected java.lang.Integer execute() {
+            Tracer.start(context, "restore");
+            final TrafficCounter traffic = new TrafficCounter();
+            converter.setStageTimer(stages);
             final boolean starredOnly = PrefStore.isRestoreStarredOnly(context);
             final boolean restoreCallLog = PrefStore.isRestoreCallLog(context);
             final boolean restoreSms     = PrefStore.isRestoreSms(context);
 
-            if (!restoreSms && !restoreCallLog) return null;
+            if (!restoreSms && !restoreCallLog) {
+                stopSelf(getStartId());
+                return null;
+            }
 
             try {
                 acquireLocks(false);
-                sIsRunning = true;
 
                 publishProgress(LOGIN);
                 smsFolder = getSMSBackupFolder();
-                if (restoreCallLog) callFolder = getCallLogBackupFolder();
 
                 publishProgress(CALC);
 
                 final List<Message> msgs = new ArrayList<Message>();
 
+                // only keep one folder open at a time so both share a single connection
                 if (restoreSms) msgs.addAll(smsFolder.getMessages(max, starredOnly, null));
-                if (restoreCallLog) msgs.addAll(callFolder.getMessages(max, starredOnly, null));
+                if (restoreCallLog) {
+                    smsFolder.close();
+                    callFolder = getCallLogBackupFolder();
+                    msgs.addAll(callFolder.getMessages(max, starredOnly, null));
+                }
 
-                sItemsToRestoreCount = max <= 0 ? msgs.size() : Math.min(msgs.size(), max);
+                setTotal(max <= 0 ? msgs.size() : Math.min(msgs.size(), max));
 
-                long lastPublished = System.currentTimeMillis();
-                for (int i = 0; i < sItemsToRestoreCount && !sCanceled; i++) {
+                for (int i = 0; i < getTotal() && !isCanceled(); i++) {
 
                     importMessage(msgs.get(i));
-                    sCurrentRestoredItems = i;
+                    setDone(i);
+                    if (traffic.isSupported()) setBytes(traffic.getBytesReceived());
 
                     msgs.set(i, null); // help gc
 
-                    if (System.currentTimeMillis() - lastPublished > 1000) {
-                        // don't publish too often or we get ANRs
-                        publishProgress(RESTORE);
-                        lastPublished = System.currentTimeMillis();
-                    }
+                    publishProgress(RESTORE);
 
                     if (i % 50 == 0) {
                       //clear cache periodically otherwise SD card fills up
@@ -109,9 +121,13 @@ public class SmsRestoreService extends ServiceBase {
                 publishProgress(CONNECTIVITY_ERROR);
                 return null;
             } catch (AuthenticationFailedException e) {
+                discardBackupImapStore();
                 publishProgress(AUTH_FAILED);
                 return null;
             } catch (MessagingException e) {
+                discardBackupImapStore();
+                if (isCanceled()) return null; // connection got aborted
+
                 Log.e(TAG, "error", e);
                 lastError = translateException(e);
                 publishProgress(GENERAL_ERROR);
@@ -122,14 +138,27 @@ public class SmsRestoreService extends ServiceBase {
                 publishProgress(GENERAL_ERROR);
                 return null;
             } finally {
+                if (smsFolder != null) smsFolder.close();
+                if (callFolder != null) callFolder.close();
+                releaseBackupImapStore();
                 releaseLocks();
+                state.flush();
+                state.close();
+                appLogTraffic(traffic);
+                appLogStages(stages);
+                stopSelf(getStartId());
            }
         }
 
         @Override
-        protected void onPostExecute(Integer result) {
-            if (sCanceled) {
-                Log.d(TAG, "restore canceled by user");
+        protected void onCancel() {
+            abortBackupImapStore();
+        }
+
+        @Override
+        protected void onFinished(Integer result) {
+            if (isCanceled()) {
+                Log.d(TAG, "restore canceled by user, stopped after " + getCancelLatency() + " ms");
                 publishProgress(CANCELED_RESTORE);
             } else if (result != null) {
                 Log.d(TAG, "finished (" + result + "/" + uids.size() + ")");
@@ -137,14 +166,11 @@ public class SmsRestoreService extends ServiceBase {
                 sDuplicateCount = uids.size() - result;
                 publishProgress(FINISHED_RESTORE);
             }
-            sCanceled = false;
-            sIsRunning = false;
         }
 
-        @Override protected void onProgressUpdate(SmsSyncState... progress) {
-          if (progress == null || progress.length == 0) return;
-          if (smsSync != null) smsSync.statusPref.stateChanged(progress[0]);
-          sState = progress[0];
+        @Override protected void onProgress(SmsSyncState progress) {
+          if (smsSync != null) smsSync.statusPref.stateChanged(progress);
+          sState = progress;
         }
 
         private void updateAllThreads(final boolean async) {
@@ -175,7 +201,10 @@ public class SmsRestoreService extends ServiceBase {
             try {
                 if (LOCAL_LOGV) Log.v(TAG, "fetching message uid " + message.getUid());
 
+                final long start = stages.start();
+                openFolder(message.getFolder());
                 message.getFolder().fetch(new Message[] { message }, fp, null);
+                stages.stop(StageTimer.Stage.FETCH, start);
                 final DataType dataType = converter.getDataType(message);
                 //only restore sms+call log for now
                 switch (dataType) {
@@ -183,6 +212,9 @@ public class SmsRestoreService extends ServiceBase {
                     case SMS:     importSms(message); break;
                     default: if (LOCAL_LOGV) Log.d(TAG, "ignoring restore of type: " + dataType);
                 }
+                if (stages.isEnabled()) {
+                    stages.count(dataType, 1, message.getSize(), System.nanoTime() - start);
+                }
             } catch (MessagingException e) {
                 Log.e(TAG, "error", e);
             } catch (IllegalArgumentException e) {
@@ -193,9 +225,20 @@ public class SmsRestoreService extends ServiceBase {
             }
         }
 
+        private void openFolder(final Folder folder) throws MessagingException {
+            if (!folder.isOpen()) {
+                // release the connection held by the other folder first
+                if (smsFolder != null && smsFolder != folder) smsFolder.close();
+                if (callFolder != null && callFolder != folder) callFolder.close();
+                folder.open(Folder.OpenMode.READ_WRITE);
+            }
+        }
+
         private void importSms(final Message message) throws IOException, MessagingException {
             if (LOCAL_LOGV) Log.v(TAG, "importSms("+message+")");
+            final long start = stages.start();
             final ContentValues values = converter.messageToContentValues(message);
+            final long importStart = stages.stop(StageTimer.Stage.CONVERT, start);
             final Integer type = values.getAsInteger(SmsConsts.TYPE);
 
             // only restore inbox messages and sent messages - otherwise sms might get sent on restore
@@ -203,8 +246,10 @@ public class SmsRestoreService extends ServiceBase {
                                  type == SmsConsts.MESSAGE_TYPE_SENT) &&
                                  !smsExists(values)) {
                 final Uri uri = getContentResolver().insert(SMS_PROVIDER, values);
+                stages.stop(StageTimer.Stage.IMPORT, importStart);
                 if (uri != null) {
                   smsIds.add(uri.getLastPathSegment());
+                  state.record(DataType.SMS, ContentUris.parseId(uri), values, message);
                   Long timestamp = values.getAsLong(SmsConsts.DATE);
 
                   if (timestamp != null &&
@@ -220,10 +265,16 @@ public class SmsRestoreService extends ServiceBase {
 
         private void importCallLog(final Message message) throws MessagingException, IOException {
             if (LOCAL_LOGV) Log.v(TAG, "importCallLog("+message+")");
+            final long start = stages.start();
             final ContentValues values = converter.messageToContentValues(message);
+            final long importStart = stages.stop(StageTimer.Stage.CONVERT, start);
             if (!callLogExists(values)) {
               final Uri uri = getContentResolver().insert(CALLLOG_PROVIDER, values);
-              if (uri != null) callLogIds.add(uri.getLastPathSegment());
+              stages.stop(StageTimer.Stage.IMPORT, importStart);
+              if (uri != null) {
+                callLogIds.add(uri.getLastPathSegment());
+                state.record(DataType.CALLLOG, ContentUris.parseId(uri), values, message);
+              }
             } else {
               if (LOCAL_LOGV) Log.d(TAG, "ignoring call log");
             }
@@ -231,16 +282,13 @@ public class SmsRestoreService extends ServiceBase {
     }
 
     @Override public void onCreate() {
+       super.onCreate();
        asyncClearCache();
        BinaryTempFileBody.setTempDirectory(getCacheDir());
     }
 
-    @Override protected void handleIntent(final Intent intent) {
-        synchronized (ServiceBase.class) {
-            if (!sIsRunning) {
-                new RestoreTask().execute(PrefStore.getMaxItemsPerRestore(this));
-            }
-        }
+    @Override protected void handleIntent(final Intent intent, int startId) {
+        JobEngine.submit(new RestoreTask(PrefStore.getMaxItemsPerRestore(this), startId));
     }
 
    private synchronized void asyncClearCache() {
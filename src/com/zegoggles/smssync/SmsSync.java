@@ -33,6 +33,8 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.net.ConnectivityManager;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -401,6 +403,14 @@ public class SmsSync extends PreferenceActivity {
             mProgressBar.setIndeterminate(true);
         }
 
+        private String formatRate(ProgressReporter.Progress progress) {
+            if (progress == null || progress.done == 0 || progress.eta < 0) return "";
+            return getString(R.string.status_progress_rate,
+                    progress.itemsPerSecond,
+                    Formatter.formatFileSize(getContext(), progress.bytesPerSecond),
+                    DateUtils.formatElapsedTime(progress.eta / 1000));
+        }
+
         private void finishedBackup() {
             int backedUpCount = SmsBackupService.getCurrentSyncedItems();
             String text = null;
@@ -459,7 +469,8 @@ public class SmsSync extends PreferenceActivity {
 
                     mSyncDetailsLabel.setText(getString(R.string.status_backup_details,
                             SmsBackupService.getCurrentSyncedItems(),
-                            SmsBackupService.getItemsToSyncCount()));
+                            SmsBackupService.getItemsToSyncCount()) +
+                            formatRate(SmsBackupService.getProgress()));
 
                     mProgressBar.setIndeterminate(false);
                     mProgressBar.setProgress(SmsBackupService.getCurrentSyncedItems());
@@ -473,7 +484,8 @@ public class SmsSync extends PreferenceActivity {
 
                     mSyncDetailsLabel.setText(getString(R.string.status_restore_details,
                               SmsRestoreService.getCurrentRestoredItems(),
-                              SmsRestoreService.getItemsToRestoreCount()));
+                              SmsRestoreService.getItemsToRestoreCount()) +
+                              formatRate(SmsRestoreService.getProgress()));
 
                     mProgressBar.setIndeterminate(false);
                     mProgressBar.setProgress(SmsRestoreService.getCurrentRestoredItems());
@@ -662,6 +674,8 @@ public class SmsSync extends PreferenceActivity {
                     .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                        public void onClick(DialogInterface dialog, int which) {
                           PrefStore.clearLastSyncData(SmsSync.this);
+                          BackupState.reset(SmsSync.this);
+                          new BackupJournal(SmsSync.this).clear();
                           dismissDialog(id);
                        }})
                     .setMessage(R.string.ui_dialog_reset_message)
@@ -716,6 +730,8 @@ public class SmsSync extends PreferenceActivity {
                     public void onClick(DialogInterface dialog, int which) {
                         PrefStore.clearOauthData(SmsSync.this);
                         PrefStore.clearLastSyncData(SmsSync.this);
+                        BackupState.reset(SmsSync.this);
+                        new BackupJournal(SmsSync.this).clear();
                         updateConnected();
                     }
                 }).create();
@@ -0,0 +1,115 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.zegoggles.smssync.CursorToMessage.DataType;
+
+/**
+ * Measures where the time of a backup or restore run goes, with a {@link Histogram} per
+ * stage. Stages can be nested, e.g. {@link Stage#CONTACTS} is part of {@link Stage#CONVERT}.
+ *
+ * Stages and batches also end up in the {@link Tracer} of the run, if one is recording.
+ *
+ * When disabled (the default) {@link #DISABLED} is used, which doesn't even read the clock.
+ * Not thread safe, a timer belongs to the job's thread.
+ */
+class StageTimer {
+    enum Stage {
+        /** provider queries */
+        QUERY,
+        /** contact lookups (cache misses) */
+        CONTACTS,
+        /** building messages from provider rows, or provider rows from messages */
+        CONVERT,
+        /** base64 encoding MMS attachments, includes writing them out */
+        ENCODE,
+        /** appending messages, including waiting for the server */
+        APPEND,
+        /** fetching message bodies from the server */
+        FETCH,
+        /** inserting restored items into the providers */
+        IMPORT,
+        /** storing sync state */
+        PREFS
+    }
+
+    static final StageTimer DISABLED = new StageTimer(false);
+
+    private final boolean enabled;
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private final Map<DataType, long[]> types = new EnumMap<DataType, long[]>(DataType.class);
+
+    private StageTimer(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+    }
+
+    static StageTimer create(Context context) {
+        return PrefStore.isAppLogTimingsEnabled(context) || PrefStore.isTraceEnabled(context) ?
+               new StageTimer(true) : DISABLED;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @return a start time to pass to {@link #stop} */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** @return the time now, so calls can be chained */
+    long stop(Stage stage, long start) {
+        if (!enabled) return 0;
+        final long now = System.nanoTime();
+        histograms[stage.ordinal()].record(now - start);
+        Tracer.span(stage.toString().toLowerCase(), "stage", start, now);
+        return now;
+    }
+
+    /** Records items of a type which took nanos to transfer. */
+    void count(DataType type, int items, long bytes, long nanos) {
+        if (!enabled) return;
+        long[] counts = types.get(type);
+        if (counts == null) {
+            counts = new long[3];
+            types.put(type, counts);
+        }
+        counts[0] += items;
+        counts[1] += Math.max(bytes, 0);
+        counts[2] += nanos;
+
+        final long now = System.nanoTime();
+        Tracer.span(items + " " + type, "batch", now - nanos, now);
+    }
+
+    /** @return one summary line per used stage and per type */
+    List<String> summarize(Context context) {
+        final List<String> lines = new ArrayList<String>();
+        if (!enabled) return lines;
+
+        for (Stage stage : Stage.values()) {
+            final Histogram histogram = histograms[stage.ordinal()];
+            if (histogram.getCount() == 0) continue;
+            lines.add(format(context, stage.toString().toLowerCase(), histogram));
+        }
+        for (Map.Entry<DataType, long[]> e : types.entrySet()) {
+            final long items = e.getValue()[0], bytes = e.getValue()[1], nanos = e.getValue()[2];
+            lines.add(context.getString(R.string.app_log_type_throughput,
+                    e.getKey(), items, nanos / 1000000,
+                    nanos > 0 ? items * 1e9f / nanos : 0f, bytes / 1024));
+        }
+        return lines;
+    }
+
+    static String format(Context context, String name, Histogram histogram) {
+        return context.getString(R.string.app_log_stage_timing, name,
+                histogram.getTotal(), histogram.getCount(),
+                histogram.getPercentile(50), histogram.getPercentile(90), histogram.getPercentile(99));
+    }
+}
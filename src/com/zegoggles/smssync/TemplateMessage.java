@@ -0,0 +1,395 @@
+package com.zegoggles.smssync;
+
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.UnavailableStorageException;
+
+import org.apache.james.mime4j.codec.EncoderUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * A plain text message (SMS, call log) which is serialized while it is built: header
+ * fields are encoded into a byte buffer as they are added, constant ones are copied from
+ * a precomputed {@link Block}, and {@link #writeTo} just copies the bytes, however often
+ * it is called (the IMAP append writes each message twice, to count and to send it).
+ *
+ * The bytes are the ones K9's {@link MimeMessage} writes for the same calls: a header
+ * value is encoded the way {@link com.fsck.k9.mail.internet.MimeHeader} does it, the text
+ * like {@link TextBody}. Any other change, or a header added once the message is complete,
+ * drops the bytes: the fields move to the {@link MimeMessage} header and the message is
+ * written like any other MimeMessage from then on.
+ */
+class TemplateMessage extends MimeMessage {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7',
+                                               '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+    /** The headers {@link MimeMessage#setBody} sets for a {@link TextBody}. */
+    static final Block TEXT_PLAIN = new Block(
+        "MIME-Version", "1.0",
+        "Content-Type", "text/plain;\n charset=utf-8",
+        "Content-Transfer-Encoding", "quoted-printable");
+
+    private final List<String> names = new ArrayList<String>(24);
+    private final List<String> values = new ArrayList<String>(24);
+    /** The message written so far, null once the bytes were dropped */
+    private byte[] data = new byte[1024];
+    private int length;
+    private boolean complete;
+
+    /** Header fields which are the same for many messages, encoded once. */
+    static class Block {
+        private final String[] namesAndValues;
+        private final byte[] bytes;
+
+        Block(String... namesAndValues) {
+            this.namesAndValues = namesAndValues;
+            final TemplateMessage out = new TemplateMessage();
+            for (int i = 0; i < namesAndValues.length; i += 2) {
+                if (namesAndValues[i + 1] != null) out.writeField(namesAndValues[i], namesAndValues[i + 1]);
+            }
+            bytes = new byte[out.length];
+            System.arraycopy(out.data, 0, bytes, 0, out.length);
+        }
+    }
+
+    /**
+     * Formats dates the way MimeMessage does for the Date header (<code>EEE, dd MMM yyyy
+     * HH:mm:ss Z</code>, US locale, default time zone), which is costly. The part up to the
+     * day is only formatted when the day or the zone offset changes. Not thread safe.
+     */
+    static class DateFormatter {
+        private static final long DAY = 24 * 60 * 60 * 1000L;
+
+        private final SimpleDateFormat dayFormat = new SimpleDateFormat("EEE, dd MMM yyyy ", Locale.US);
+        private final TimeZone zone = dayFormat.getTimeZone();
+        private final char[] time = new char[14]; // HH:mm:ss +hhmm
+        private String prefix;
+        private long day;
+        private int offset;
+
+        String format(Date date) {
+            final int offset = zone.getOffset(date.getTime());
+            final long local = date.getTime() + offset;
+            long day = local / DAY;
+            if (local % DAY < 0) day--;
+            if (prefix == null || day != this.day || offset != this.offset) {
+                prefix = dayFormat.format(date);
+                this.day = day;
+                this.offset = offset;
+            }
+
+            final int seconds = (int) ((local - day * DAY) / 1000);
+            twoDigits(0, seconds / 3600);
+            time[2] = ':';
+            twoDigits(3, seconds / 60 % 60);
+            time[5] = ':';
+            twoDigits(6, seconds % 60);
+            time[8] = ' ';
+            final int minutes = offset / 60000;
+            time[9] = minutes < 0 ? '-' : '+';
+            twoDigits(10, Math.abs(minutes) / 60);
+            twoDigits(12, Math.abs(minutes) % 60);
+            return prefix.concat(new String(time));
+        }
+
+        private void twoDigits(int at, int value) {
+            time[at]     = (char) ('0' + value / 10);
+            time[at + 1] = (char) ('0' + value % 10);
+        }
+    }
+
+    /** Adds a header field, like {@link MimeMessage#setHeader}, a null value is skipped. */
+    TemplateMessage add(String name, String value) {
+        if (value == null) return this;
+        if (complete) dropBytes();
+        if (data == null) {
+            mHeader.addHeader(name, value);
+            return this;
+        }
+        names.add(name);
+        values.add(value);
+        writeField(name, value);
+        return this;
+    }
+
+    TemplateMessage add(Block block) {
+        if (complete) dropBytes();
+        for (int i = 0; i < block.namesAndValues.length; i += 2) {
+            if (block.namesAndValues[i + 1] != null) {
+                if (data == null) {
+                    mHeader.addHeader(block.namesAndValues[i], block.namesAndValues[i + 1]);
+                } else {
+                    names.add(block.namesAndValues[i]);
+                    values.add(block.namesAndValues[i + 1]);
+                }
+            }
+        }
+        if (data != null) write(block.bytes, 0, block.bytes.length);
+        return this;
+    }
+
+    /**
+     * Adds the Date header, like {@link MimeMessage#setSentDate}.
+     * @param formatted the date, see {@link DateFormatter}
+     */
+    TemplateMessage addDate(Date date, String formatted) {
+        add("Date", formatted);
+        setInternalSentDate(date);
+        return this;
+    }
+
+    /** Writes the body, quoted-printable encoded like {@link TextBody}, and completes the message. */
+    void setText(String text) throws MessagingException {
+        if (complete) dropBytes();
+        mBody = new TextBody(text);
+        if (data != null) {
+            write(CRLF, 0, CRLF.length);
+            if (text != null) {
+                try {
+                    new QuotedPrintable().encode(text.getBytes("UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new MessagingException("error encoding message", e);
+                }
+            }
+            // messages wait in batches, don't keep the slack
+            final byte[] trimmed = new byte[length];
+            System.arraycopy(data, 0, trimmed, 0, length);
+            data = trimmed;
+        }
+        complete = true;
+    }
+
+    /**
+     * The quoted-printable encoding of mime4j's QuotedPrintableOutputStream in text mode,
+     * byte for byte, without its 4 KB of buffers per message. TextBody flushes the stream
+     * but never closes it, so whitespace (and a CR) at the very end of the text is dropped.
+     */
+    private class QuotedPrintable {
+        private static final int MAX_LINE_LENGTH = 76;
+
+        private boolean pendingSpace, pendingTab, pendingCR;
+        private int nextSoftBreak = MAX_LINE_LENGTH + 1;
+
+        void encode(byte[] bytes) {
+            // at most 3 bytes per byte, plus a soft break per line
+            ensureCapacity(bytes.length * 4 + 8);
+            for (byte b : bytes) {
+                if (b == '\n') {
+                    if (pendingCR) {
+                        if (pendingSpace) {
+                            escape((byte) ' ');
+                        } else if (pendingTab) {
+                            escape((byte) '\t');
+                        }
+                        lineBreak();
+                        clearPending();
+                    } else {
+                        writePending();
+                        plain(b);
+                    }
+                } else if (b == '\r') {
+                    pendingCR = true;
+                } else {
+                    writePending();
+                    if (b == ' ') {
+                        pendingSpace = true;
+                    } else if (b == '\t') {
+                        pendingTab = true;
+                    } else if (b < 32 || b > 126 || b == '=') {  // bytes > 127 are negative
+                        escape(b);
+                    } else {
+                        plain(b);
+                    }
+                }
+            }
+        }
+
+        private void writePending() {
+            if (pendingSpace) {
+                plain((byte) ' ');
+            } else if (pendingTab) {
+                plain((byte) '\t');
+            } else if (pendingCR) {
+                plain((byte) '\r');
+            }
+            clearPending();
+        }
+
+        private void clearPending() {
+            pendingSpace = pendingTab = pendingCR = false;
+        }
+
+        private void plain(byte b) {
+            if (--nextSoftBreak <= 1) softBreak();
+            data[length++] = b;
+        }
+
+        private void escape(byte b) {
+            if (--nextSoftBreak <= 3) softBreak();
+            data[length++] = '=';
+            data[length++] = HEX_DIGITS[(b & 0xff) >> 4];
+            data[length++] = HEX_DIGITS[b & 0x0f];
+            nextSoftBreak -= 2;
+        }
+
+        private void softBreak() {
+            data[length++] = '=';
+            lineBreak();
+        }
+
+        private void lineBreak() {
+            data[length++] = '\r';
+            data[length++] = '\n';
+            nextSoftBreak = MAX_LINE_LENGTH;
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        if (data == null) {
+            super.writeTo(out);
+            return;
+        }
+        if (!complete) throw new MessagingException("message is incomplete");
+        out.write(data, 0, length);
+    }
+
+    @Override
+    public int getSize() {
+        if (data == null) return super.getSize();
+        return complete ? length : 0;
+    }
+
+    /** @return the values of a header, null if it is not set (like MimeHeader) */
+    @Override
+    public String[] getHeader(String name) {
+        if (data == null) return mHeader.getHeader(name);
+        List<String> found = null;
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                if (found == null) found = new ArrayList<String>(1);
+                found.add(values.get(i));
+            }
+        }
+        return found != null ? found.toArray(new String[found.size()]) : null;
+    }
+
+    @Override
+    protected String getFirstHeader(String name) {
+        if (data == null) return mHeader.getFirstHeader(name);
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) return values.get(i);
+        }
+        return null;
+    }
+
+    @Override
+    public Set<String> getHeaderNames() {
+        if (data == null) return mHeader.getHeaderNames();
+        return new LinkedHashSet<String>(names);
+    }
+
+    @Override
+    public String getMessageId() {
+        return getFirstHeader("Message-ID");
+    }
+
+    @Override
+    public void setHeader(String name, String value) throws UnavailableStorageException {
+        dropBytes();
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) throws UnavailableStorageException {
+        dropBytes();
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void removeHeader(String name) throws UnavailableStorageException {
+        dropBytes();
+        super.removeHeader(name);
+    }
+
+    @Override
+    public void setBody(Body body) throws MessagingException {
+        dropBytes();
+        super.setBody(body);
+        complete = true;
+    }
+
+    @Override
+    public void setEncoding(String encoding) throws UnavailableStorageException {
+        dropBytes();
+        super.setEncoding(encoding);
+    }
+
+    /** Moves the fields to the MimeMessage header, which is written from then on. */
+    private void dropBytes() {
+        if (data == null) return;
+        for (int i = 0; i < names.size(); i++) {
+            mHeader.addHeader(names.get(i), values.get(i));
+        }
+        names.clear();
+        values.clear();
+        data = null;
+        length = 0;
+    }
+
+    private void writeField(String name, String value) {
+        if (hasToBeEncoded(value)) value = EncoderUtil.encodeEncodedWord(value, EncoderUtil.Usage.WORD_ENTITY);
+        ensureCapacity(name.length() + value.length() + 4);
+        writeAscii(name);
+        data[length++] = ':';
+        data[length++] = ' ';
+        writeAscii(value);
+        data[length++] = '\r';
+        data[length++] = '\n';
+    }
+
+    private void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, data, length, len);
+        length += len;
+    }
+
+    /** Same as MimeHeader.hasToBeEncoded: anything but printable ASCII, CR and LF. */
+    private static boolean hasToBeEncoded(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c < 0x20 || c > 0x7e) && c != '\n' && c != '\r') return true;
+        }
+        return false;
+    }
+
+    /** Names and (encoded) values are ASCII only, the capacity has to be ensured. */
+    private void writeAscii(String s) {
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            data[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (length + n > data.length) {
+            final byte[] grown = new byte[Math.max(data.length * 2, length + n)];
+            System.arraycopy(data, 0, grown, 0, length);
+            data = grown;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Records the spans of a run (phases, {@link StageTimer} stages, batches and IMAP
+ * commands) and writes them as a Chrome trace-event file next to the sync log, which
+ * can be opened in chrome://tracing or Perfetto.
+ *
+ * The tracer of a run is bound to the job's thread, code on that thread records through
+ * the static methods, which do nothing unless a trace is being recorded.
+ */
+class Tracer {
+    /** Keeps the memory of a trace bounded, later spans are dropped. */
+    static final int MAX_SPANS = 50000;
+
+    private static final ThreadLocal<Tracer> CURRENT = new ThreadLocal<Tracer>();
+
+    private final String name;
+    private final long origin = System.nanoTime();
+    private final int tid = Process.myTid();
+    private final List<Span> spans = new ArrayList<Span>();
+    private String phase;
+    private long phaseStart;
+    private int dropped;
+
+    private static class Span {
+        final String name, category;
+        final long start, end;
+
+        Span(String name, String category, long start, long end) {
+            this.name = name;
+            this.category = category;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private Tracer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Starts recording on the current thread, if tracing is enabled.
+     * @param name used for the file name, e.g. "backup"
+     */
+    static void start(Context context, String name) {
+        if (PrefStore.isTraceEnabled(context)) {
+            CURRENT.set(new Tracer(name));
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /** Stops recording on the current thread and writes the trace. */
+    static void finish() {
+        final Tracer tracer = CURRENT.get();
+        if (tracer == null) return;
+        CURRENT.remove();
+
+        tracer.endPhase(System.nanoTime());
+        tracer.write();
+    }
+
+    static boolean isTracing() {
+        return CURRENT.get() != null;
+    }
+
+    /** Records a span, times from {@link System#nanoTime()}. */
+    static void span(String name, String category, long start, long end) {
+        final Tracer tracer = CURRENT.get();
+        if (tracer != null) tracer.add(name, category, start, end);
+    }
+
+    /** Ends the current phase and starts a new one, unless it is already running. */
+    static void phase(Object phase) {
+        final Tracer tracer = CURRENT.get();
+        if (tracer == null || phase.toString().equals(tracer.phase)) return;
+
+        final long now = System.nanoTime();
+        tracer.endPhase(now);
+        tracer.phase = phase.toString();
+        tracer.phaseStart = now;
+    }
+
+    static File getFile(String name) {
+        return AppLog.getFile(String.format(TRACE, name));
+    }
+
+    private void endPhase(long now) {
+        if (phase != null) add(phase, "phase", phaseStart, now);
+        phase = null;
+    }
+
+    private void add(String name, String category, long start, long end) {
+        if (spans.size() < MAX_SPANS) {
+            spans.add(new Span(name, category, start, end));
+        } else {
+            dropped++;
+        }
+    }
+
+    private void write() {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) return;
+
+        final File file = getFile(name);
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(file), 8192);
+            out.write("{\"displayTimeUnit\":\"ms\",\"otherData\":{\"dropped\":" + dropped + "},\"traceEvents\":[");
+            for (int i = 0; i < spans.size(); i++) {
+                final Span span = spans.get(i);
+                if (i > 0) out.write(",\n");
+                out.write("{\"name\":\"");
+                escape(out, span.name);
+                out.write("\",\"cat\":\"" + span.category + "\",\"ph\":\"X\",\"pid\":" + Process.myPid() +
+                          ",\"tid\":" + tid +
+                          ",\"ts\":" + (span.start - origin) / 1000 +
+                          ",\"dur\":" + Math.max(0, span.end - span.start) / 1000 + "}");
+            }
+            out.write("]}\n");
+            if (LOCAL_LOGV) Log.v(TAG, "wrote " + spans.size() + " spans to " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "error writing trace " + file, e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static void escape(Writer out, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(' ');
+            } else {
+                out.write(c);
+            }
+        }
+    }
+}
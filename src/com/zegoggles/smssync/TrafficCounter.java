@@ -0,0 +1,58 @@
+package com.zegoggles.smssync;
+
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Counts the bytes this app sent and received over the network since the counter was
+ * created, i.e. what actually went over the wire after TLS and IMAP compression.
+ * Only available on Android 2.2+ and on kernels which keep per-uid statistics.
+ */
+class TrafficCounter {
+    private static final boolean AVAILABLE = Integer.parseInt(Build.VERSION.SDK) >=
+                                             Build.VERSION_CODES.FROYO;
+    private static final long UNSUPPORTED = -1;
+
+    private final int uid;
+    private final long txStart, rxStart;
+
+    TrafficCounter() {
+        uid = Process.myUid();
+        txStart = txBytes(uid);
+        rxStart = rxBytes(uid);
+    }
+
+    public boolean isSupported() {
+        return txStart != UNSUPPORTED && rxStart != UNSUPPORTED;
+    }
+
+    public long getBytesSent() {
+        return isSupported() ? txBytes(uid) - txStart : UNSUPPORTED;
+    }
+
+    public long getBytesReceived() {
+        return isSupported() ? rxBytes(uid) - rxStart : UNSUPPORTED;
+    }
+
+    private static long txBytes(int uid) {
+        return AVAILABLE ? Froyo.txBytes(uid) : UNSUPPORTED;
+    }
+
+    private static long rxBytes(int uid) {
+        return AVAILABLE ? Froyo.rxBytes(uid) : UNSUPPORTED;
+    }
+
+    // separate class so TrafficStats is only resolved on devices which have it
+    private static class Froyo {
+        static long txBytes(int uid) {
+            final long bytes = TrafficStats.getUidTxBytes(uid);
+            return bytes == TrafficStats.UNSUPPORTED ? UNSUPPORTED : bytes;
+        }
+
+        static long rxBytes(int uid) {
+            final long bytes = TrafficStats.getUidRxBytes(uid);
+            return bytes == TrafficStats.UNSUPPORTED ? UNSUPPORTED : bytes;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.*;
+import static com.zegoggles.smssync.CursorToMessage.DataType;
+
+/**
+ * Keeps the max synced dates of a running backup in memory and only writes them out
+ * every {@link #CHECKPOINT_INTERVAL} ms or {@link #CHECKPOINT_ITEMS} updates, instead of
+ * committing (and rewriting) the preferences file after every single message.
+ * Updates lost in a crash are recovered from the {@link BackupJournal}.
+ *
+ * While a large backlog is being backed up a type can have a second, recent lane: items
+ * up to the max synced date and items between the split date and the recent synced date
+ * are backed up. Once the backlog reaches the split date the lanes are merged again.
+ */
+class Watermarks {
+    static final long CHECKPOINT_INTERVAL = 30 * 1000;
+    static final int CHECKPOINT_ITEMS = 100;
+
+    /** Called before a checkpoint gets written. */
+    interface CheckpointListener {
+        void beforeCheckpoint();
+    }
+
+    private final Context context;
+    private final CheckpointListener listener;
+    private final Map<String, Long> dates = new HashMap<String, Long>();
+    /** pending updates, null values are removed */
+    private final Map<String, Long> dirty = new HashMap<String, Long>();
+    private long lastCheckpoint = SystemClock.elapsedRealtime();
+    private int updates;
+
+    /** @param listener makes whatever the new watermarks depend on durable, may be null */
+    Watermarks(Context context, CheckpointListener listener) {
+        this.context = context;
+        this.listener = listener;
+    }
+
+    long get(DataType type) {
+        return get(getKey(type));
+    }
+
+    void set(DataType type, long date) {
+        put(getKey(type), date);
+        checkpointIfDue();
+    }
+
+    boolean isLaneOpen(DataType type) {
+        return getSplit(type) != PrefStore.DEFAULT_MAX_SYNCED_DATE;
+    }
+
+    /** @return the date from which on items are in the recent lane */
+    long getSplit(DataType type) {
+        return get(PrefStore.PREF_RECENT_SPLIT_DATE + type);
+    }
+
+    long getRecent(DataType type) {
+        return get(PrefStore.PREF_RECENT_SYNCED_DATE + type);
+    }
+
+    void setRecent(DataType type, long date) {
+        put(PrefStore.PREF_RECENT_SYNCED_DATE + type, date);
+        checkpointIfDue();
+    }
+
+    /** Items newer than split will be backed up in the recent lane, ahead of older ones. */
+    void openLane(DataType type, long split) {
+        if (LOCAL_LOGV) Log.v(TAG, "opening recent lane for " + type + " at " + split);
+        put(PrefStore.PREF_RECENT_SPLIT_DATE + type, split);
+        put(PrefStore.PREF_RECENT_SYNCED_DATE + type, split);
+        checkpoint();
+    }
+
+    /** Called once all items up to the split date are backed up. */
+    void closeLane(DataType type) {
+        if (LOCAL_LOGV) Log.v(TAG, "closing recent lane for " + type);
+        put(getKey(type), Math.max(get(type), getRecent(type)));
+        put(PrefStore.PREF_RECENT_SPLIT_DATE + type, null);
+        put(PrefStore.PREF_RECENT_SYNCED_DATE + type, null);
+        checkpoint();
+    }
+
+    /**
+     * Writes pending updates with a single commit. SharedPreferences writes the new
+     * file next to a backup of the old one, so an interrupted commit leaves the previous
+     * checkpoint intact.
+     */
+    void checkpoint() {
+        lastCheckpoint = SystemClock.elapsedRealtime();
+        updates = 0;
+        if (dirty.isEmpty()) return;
+        if (listener != null) listener.beforeCheckpoint();
+
+        final SharedPreferences.Editor editor = PrefStore.getPrefs(context).edit();
+        for (Map.Entry<String, Long> e : dirty.entrySet()) {
+            if (e.getValue() != null) {
+                editor.putLong(e.getKey(), e.getValue());
+            } else {
+                editor.remove(e.getKey());
+            }
+        }
+        if (editor.commit()) {
+            if (LOCAL_LOGV) Log.v(TAG, "checkpoint " + dirty);
+            dirty.clear();
+        } else {
+            Log.w(TAG, "could not store max synced dates " + dirty);
+        }
+    }
+
+    private long get(String key) {
+        Long date = dates.get(key);
+        if (date == null) {
+            date = PrefStore.getPrefs(context).getLong(key, PrefStore.DEFAULT_MAX_SYNCED_DATE);
+            dates.put(key, date);
+        }
+        return date;
+    }
+
+    private void put(String key, Long date) {
+        dates.put(key, date != null ? date : PrefStore.DEFAULT_MAX_SYNCED_DATE);
+        dirty.put(key, date);
+    }
+
+    private void checkpointIfDue() {
+        if (++updates >= CHECKPOINT_ITEMS ||
+            SystemClock.elapsedRealtime() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+    }
+
+    private static String getKey(DataType type) {
+        switch (type) {
+            case SMS:     return PrefStore.PREF_MAX_SYNCED_DATE_SMS;
+            case MMS:     return PrefStore.PREF_MAX_SYNCED_DATE_MMS;
+            case CALLLOG: return PrefStore.PREF_MAX_SYNCED_DATE_CALLLOG;
+            default: throw new IllegalArgumentException("unknown type " + type);
+        }
+    }
+}